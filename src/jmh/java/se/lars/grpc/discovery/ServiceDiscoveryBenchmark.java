@@ -0,0 +1,51 @@
+package se.lars.grpc.discovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the registrations read from the service znode's children.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceDiscoveryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int nodes;
+
+    private byte[][] data;
+
+    @Setup
+    public void setup() {
+        data = new byte[nodes][];
+        for (int i = 0; i < nodes; i++) {
+            data[i] = ("dns://10.0." + (i / 250) + "." + (i % 250) + ":8080|**|zone-" + (i % 3)).getBytes();
+        }
+    }
+
+    @Benchmark
+    public List<ServiceDiscovery.HostandZone> parseServiceNodes() {
+        List<ServiceDiscovery.HostandZone> result = new ArrayList<>(nodes);
+        for (byte[] node : data) {
+            result.add(ServiceDiscovery.parseServiceNode(node, 0));
+        }
+        return result;
+    }
+}
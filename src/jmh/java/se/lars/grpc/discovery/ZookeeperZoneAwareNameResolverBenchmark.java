@@ -0,0 +1,58 @@
+package se.lars.grpc.discovery;
+
+import io.grpc.EquivalentAddressGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of discovered nodes into address groups, sorted with the preferred zone first.  Hosts
+ * are IP literals so no name lookups are involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZookeeperZoneAwareNameResolverBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int nodes;
+
+    private List<ServiceDiscovery.HostandZone> discovered;
+    private ZookeeperZoneAwareNameResolver resolver;
+
+    @Setup
+    public void setup() {
+        discovered = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            discovered.add(new ServiceDiscovery.HostandZone(URI.create("dns://10.0." + (i / 250) + "." + (i % 250) + ":8080"),
+                                                            "zone-" + (i % 3)));
+        }
+        Collections.shuffle(discovered, new Random(42));
+        resolver = new ZookeeperZoneAwareNameResolver(URI.create("zk://benchmark"),
+                                                      null,
+                                                      ZookeeperZoneAwareNameResolverProvider.getZoneComparator("zone-1"));
+    }
+
+    @Benchmark
+    public List<EquivalentAddressGroup> convertToResolvedServers() {
+        return resolver.convertToResolvedServers(discovered);
+    }
+}
@@ -0,0 +1,79 @@
+package se.lars.grpc.retry;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per call overhead of {@link RetryClientInterceptor} and {@link ReplayingSingleSendClientCall}
+ * compared to the same call without the interceptor, over an in-process transport with a direct
+ * executor so the interceptor is a measurable part of the call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryClientInterceptorBenchmark {
+
+    private static final Health.Ping PING = Health.Ping.newBuilder().build();
+    private static final Health.Pong PONG = Health.Pong.newBuilder().build();
+
+    private Server server;
+    private ManagedChannel channel;
+    private PingPongGrpc.PingPongBlockingStub baseline;
+    private PingPongGrpc.PingPongBlockingStub retrying;
+
+    @Setup
+    public void setup() throws Exception {
+        String name = "retry-benchmark-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name)
+                                       .directExecutor()
+                                       .addService(new PingPongGrpc.PingPongImplBase() {
+                                           @Override
+                                           public void pingit(Health.Ping request, StreamObserver<Health.Pong> responseObserver) {
+                                               responseObserver.onNext(PONG);
+                                               responseObserver.onCompleted();
+                                           }
+                                       })
+                                       .build()
+                                       .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        baseline = PingPongGrpc.newBlockingStub(channel);
+        retrying = baseline.withInterceptors(new RetryClientInterceptor(Retryer.createDefault().maxRetries(5)));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Health.Pong baseline() {
+        return baseline.pingit(PING);
+    }
+
+    @Benchmark
+    public Health.Pong retryInterceptor() {
+        return retrying.pingit(PING);
+    }
+}
@@ -0,0 +1,76 @@
+package se.lars.grpc.retry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link Retryer#retry(Runnable)}.  {@code delayedRetry} schedules a retry with a
+ * backoff, replacing the previously scheduled one as a new failure would.  {@code immediateRetry}
+ * hands the retry to the executor and waits until it ran.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryerBenchmark {
+
+    private final AtomicLong executed = new AtomicLong();
+    private final Runnable task = executed::incrementAndGet;
+
+    private ScheduledThreadPoolExecutor executor;
+    private Retryer delayed;
+    private Retryer immediate;
+
+    @Setup
+    public void setup() {
+        executor = new ScheduledThreadPoolExecutor(1);
+        // Cancelled retries must not pile up in the queue until their delay expires
+        executor.setRemoveOnCancelPolicy(true);
+        delayed = Retryer.createDefault()
+                         .retryForever()
+                         .backoffPolicy(Backoffs.constant(TimeUnit.MINUTES.toMillis(1)))
+                         .executor(executor);
+        immediate = Retryer.createDefault()
+                           .retryForever()
+                           .executor(executor);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        delayed.cancel();
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Retryer delayedRetry() {
+        delayed = delayed.retry(task);
+        return delayed;
+    }
+
+    @Benchmark
+    public long immediateRetry() {
+        long target = executed.get() + 1;
+        immediate = immediate.retry(task);
+        long count;
+        while ((count = executed.get()) < target) {
+            Thread.yield();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,419 @@
+package se.lars.grpc.loadtest;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import se.lars.grpc.discovery.ServiceDiscovery;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolverProvider;
+import se.lars.grpc.healthchecking.HealthCheckingLoadBalancerFactory;
+import se.lars.grpc.loadbalancing.ConnectionPoolingLoadBalancerFactory;
+import se.lars.grpc.loadbalancing.OutlierDetectionLoadBalancerFactory;
+import se.lars.grpc.server.InFlightCallsInterceptor;
+import se.lars.grpc.server.ServerLifecycle;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load and churn harness.  Starts an embedded Zookeeper and a number of localhost gRPC
+ * servers registered through {@link ServiceDiscovery}, drives pipelined async calls through a
+ * {@code zk://} channel and runs a churn scenario while measuring:
+ * <ul>
+ * <li>throughput and latency percentiles, overall and during churn</li>
+ * <li>time from deregistration until a backend stops receiving calls, and from registration until
+ * it receives its first call</li>
+ * <li>packets received by Zookeeper per membership change, including session pings</li>
+ * <li>failed calls by status code</li>
+ * </ul>
+ * Options, all optional:
+ * <pre>
+ * --servers 5             number of backends
+ * --concurrency 64        calls kept in flight
+ * --warmup 5              seconds of load before churn starts
+ * --settle 5              seconds between churn events
+ * --scenario rolling-restart | session-expiry | none
+ * --lb round-robin | outlier | health | pooling
+ * --connections 1         connections per backend, with --max-connections to let pools grow
+ * </pre>
+ * Run with {@code mvn -P loadtest verify -Dloadtest.args="--servers 10 --scenario session-expiry"}.
+ */
+public class ChurnHarness {
+
+    private static final String SERVICE = "loadtest";
+    private static final Health.Ping PING = Health.Ping.newBuilder().build();
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final Pattern RECEIVED = Pattern.compile("Received: (\\d+)");
+
+    private final Map<String, String> options;
+    private final TestingServer zookeeper;
+    private final List<Backend> backends = new ArrayList<>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram churnLatencies = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final Map<Status.Code, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<Status.Code, LongAdder> churnErrors = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> lastServed = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> firstServed = new ConcurrentHashMap<>();
+    private final List<String> events = new ArrayList<>();
+    private volatile boolean churning;
+    private volatile boolean running = true;
+
+    private ChurnHarness(Map<String, String> options) throws Exception {
+        this.options = options;
+        this.zookeeper = new TestingServer();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        new ChurnHarness(options).run();
+        System.exit(0);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private void run() throws Exception {
+        int servers = intOption("servers", 5);
+        int concurrency = intOption("concurrency", 64);
+        long warmupMillis = TimeUnit.SECONDS.toMillis(intOption("warmup", 5));
+        long settleMillis = TimeUnit.SECONDS.toMillis(intOption("settle", 5));
+        String scenario = options.getOrDefault("scenario", "rolling-restart");
+        int connections = intOption("connections", 1);
+        int maxConnections = intOption("max-connections", connections);
+
+        for (int i = 0; i < servers; i++) {
+            backends.add(startBackend());
+        }
+
+        ManagedChannel channel = ManagedChannelBuilder.forTarget("zk://" + SERVICE)
+                                                      .nameResolverFactory(ZookeeperZoneAwareNameResolverProvider.newBuilder()
+                                                                                   .setZookeeperAddress(zookeeper.getConnectString())
+                                                                                   .setConnectionsPerBackend(connections, maxConnections)
+                                                                                   .build())
+                                                      .usePlaintext(true)
+                                                      .loadBalancerFactory(loadBalancer(options.getOrDefault("lb", "round-robin")))
+                                                      .build();
+        PingPongGrpc.PingPongFutureStub stub = PingPongGrpc.newFutureStub(channel);
+
+        Thread driver = new Thread(() -> drive(stub, concurrency), "loadtest-driver");
+        driver.start();
+
+        long start = System.nanoTime();
+        Thread.sleep(warmupMillis);
+        long churnStart = System.nanoTime();
+        long completedBeforeChurn = completed.sum();
+        churning = true;
+        switch (scenario) {
+            case "rolling-restart":
+                rollingRestart(settleMillis);
+                break;
+            case "session-expiry":
+                sessionExpiry(settleMillis);
+                break;
+            default:
+                Thread.sleep(settleMillis);
+        }
+        churning = false;
+        long churnEnd = System.nanoTime();
+        long completedDuringChurn = completed.sum() - completedBeforeChurn;
+
+        running = false;
+        driver.join();
+        long end = System.nanoTime();
+
+        report(start, end, churnStart, churnEnd, completedDuringChurn);
+
+        channel.shutdownNow();
+        for (Backend backend : backends) {
+            backend.stop();
+        }
+        zookeeper.close();
+    }
+
+    private LoadBalancer.Factory loadBalancer(String name) {
+        switch (name) {
+            case "outlier":
+                return OutlierDetectionLoadBalancerFactory.newBuilder().build();
+            case "health":
+                return HealthCheckingLoadBalancerFactory.newBuilder()
+                                                        .setInterval(1, TimeUnit.SECONDS)
+                                                        .setDelegate(OutlierDetectionLoadBalancerFactory.newBuilder().build())
+                                                        .build();
+            case "pooling":
+                return ConnectionPoolingLoadBalancerFactory.newBuilder()
+                                                           .setMaxConcurrentStreams(MAX_CONCURRENT_STREAMS)
+                                                           .build();
+            default:
+                return RoundRobinLoadBalancerFactory.getInstance();
+        }
+    }
+
+    private void drive(PingPongGrpc.PingPongFutureStub stub, int concurrency) {
+        Semaphore permits = new Semaphore(concurrency);
+        while (running) {
+            try {
+                if (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            long callStart = System.nanoTime();
+            boolean duringChurn = churning;
+            Futures.addCallback(stub.withDeadlineAfter(5, TimeUnit.SECONDS).pingit(PING), new FutureCallback<Health.Pong>() {
+                @Override
+                public void onSuccess(Health.Pong pong) {
+                    long now = System.nanoTime();
+                    latencies.record(now - callStart);
+                    if (duringChurn) {
+                        churnLatencies.record(now - callStart);
+                    }
+                    completed.increment();
+                    int port = Integer.parseInt(pong.getMsg());
+                    lastServed.computeIfAbsent(port, p -> new AtomicLong()).set(now);
+                    firstServed.computeIfAbsent(port, p -> new AtomicLong(now));
+                    permits.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    Status.Code code = Status.fromThrowable(t).getCode();
+                    errors.computeIfAbsent(code, c -> new LongAdder()).increment();
+                    if (duringChurn) {
+                        churnErrors.computeIfAbsent(code, c -> new LongAdder()).increment();
+                    }
+                    permits.release();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        permits.acquireUninterruptibly(concurrency);
+    }
+
+    private void rollingRestart(long settleMillis) throws Exception {
+        for (int i = 0; i < backends.size(); i++) {
+            Backend old = backends.get(i);
+            long packets = zookeeperPackets();
+            long deregistered = System.nanoTime();
+            long drainMillis = old.lifecycle.shutdown();
+            old.discovery.close();
+            awaitTrafficStop(old.port, deregistered, settleMillis);
+            events.add(String.format("deregister :%d  drain %d ms, last call %s, zk packets %d",
+                                     old.port, drainMillis, sinceMillis(lastServed.get(old.port), deregistered),
+                                     zookeeperPackets() - packets));
+
+            packets = zookeeperPackets();
+            long registered = System.nanoTime();
+            Backend replacement = startBackend();
+            backends.set(i, replacement);
+            awaitTrafficStart(replacement.port, settleMillis);
+            events.add(String.format("register   :%d  first call %s, zk packets %d",
+                                     replacement.port, sinceMillis(firstServed.get(replacement.port), registered),
+                                     zookeeperPackets() - packets));
+        }
+    }
+
+    private void sessionExpiry(long settleMillis) throws Exception {
+        Backend victim = backends.get(0);
+        long packets = zookeeperPackets();
+        long expired = System.nanoTime();
+        KillSession.kill(victim.discovery.getCuratorFramework().getZookeeperClient().getZooKeeper(),
+                         zookeeper.getConnectString());
+        awaitTrafficStop(victim.port, expired, settleMillis);
+        events.add(String.format("expire     :%d  last call %s, zk packets %d",
+                                 victim.port, sinceMillis(lastServed.get(victim.port), expired),
+                                 zookeeperPackets() - packets));
+
+        // The registration is gone with the session, register again as a restarted instance would
+        packets = zookeeperPackets();
+        long registered = System.nanoTime();
+        lastServed.remove(victim.port);
+        victim.discovery.registerService(SERVICE, Backend.uri(victim.port));
+        awaitTrafficResume(victim.port, registered, settleMillis);
+        events.add(String.format("register   :%d  first call %s, zk packets %d",
+                                 victim.port, sinceMillis(lastServed.get(victim.port), registered),
+                                 zookeeperPackets() - packets));
+    }
+
+    private void awaitTrafficStop(int port, long since, long settleMillis) throws InterruptedException {
+        // Traffic has stopped once the backend served nothing for a while
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        while (System.nanoTime() < deadline) {
+            AtomicLong last = lastServed.get(port);
+            if (last == null || System.nanoTime() - Math.max(since, last.get()) > quietNanos) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Thread.sleep(settleMillis / 2);
+    }
+
+    private void awaitTrafficStart(int port, long settleMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        while (!firstServed.containsKey(port) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(settleMillis / 2);
+    }
+
+    private void awaitTrafficResume(int port, long since, long settleMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        while (System.nanoTime() < deadline) {
+            AtomicLong last = lastServed.get(port);
+            if (last != null && last.get() > since) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Thread.sleep(settleMillis / 2);
+    }
+
+    private static String sinceMillis(AtomicLong timestamp, long since) {
+        if (timestamp == null || timestamp.get() < since) {
+            return "none";
+        }
+        return TimeUnit.NANOSECONDS.toMillis(timestamp.get() - since) + " ms";
+    }
+
+    /**
+     * @return Packets received by Zookeeper so far, from the output of the {@code srvr} command
+     */
+    private long zookeeperPackets() {
+        try (Socket socket = new Socket("localhost", zookeeper.getPort())) {
+            socket.getOutputStream().write("srvr".getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            String output = new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.US_ASCII);
+            Matcher matcher = RECEIVED.matcher(output);
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private Backend startBackend() throws Exception {
+        int port = freePort();
+        Health.Pong pong = Health.Pong.newBuilder().setMsg(String.valueOf(port)).build();
+        InFlightCallsInterceptor inFlightCalls = new InFlightCallsInterceptor();
+        io.grpc.Server server = NettyServerBuilder.forPort(port)
+                                                  .maxConcurrentCallsPerConnection(MAX_CONCURRENT_STREAMS)
+                                                  .addService(ServerInterceptors.intercept(new PingPongGrpc.PingPongImplBase() {
+                                                      @Override
+                                                      public void pingit(Health.Ping request, StreamObserver<Health.Pong> responseObserver) {
+                                                          responseObserver.onNext(pong);
+                                                          responseObserver.onCompleted();
+                                                      }
+                                                  }, inFlightCalls))
+                                                  .build();
+        ServiceDiscovery discovery = new ServiceDiscovery(zookeeper.getConnectString());
+        Backend backend = new Backend(port, discovery, ServerLifecycle.newBuilder()
+                                                                      .setServer(server)
+                                                                      .setServiceDiscovery(discovery)
+                                                                      .setServiceId(SERVICE)
+                                                                      .setEndpointURI(Backend.uri(port))
+                                                                      .setInFlightCalls(inFlightCalls)
+                                                                      .setPropagationWindow(2, TimeUnit.SECONDS)
+                                                                      .setQuietPeriod(500, TimeUnit.MILLISECONDS)
+                                                                      .build());
+        backend.lifecycle.start();
+        return backend;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void report(long start, long end, long churnStart, long churnEnd, long completedDuringChurn) {
+        double seconds = (end - start) / 1e9;
+        double churnSeconds = (churnEnd - churnStart) / 1e9;
+        System.out.println();
+        System.out.println("==== Load test: " + options.getOrDefault("scenario", "rolling-restart")
+                                   + ", " + backends.size() + " servers, lb " + options.getOrDefault("lb", "round-robin"));
+        System.out.printf("Throughput      %.0f calls/s overall, %.0f calls/s during churn%n",
+                          completed.sum() / seconds, completedDuringChurn / churnSeconds);
+        printLatencies("Latency", latencies);
+        printLatencies("Churn latency", churnLatencies);
+        System.out.println("Errors          " + format(errors));
+        System.out.println("Churn errors    " + format(churnErrors));
+        System.out.println("Membership changes:");
+        events.forEach(event -> System.out.println("  " + event));
+    }
+
+    private static void printLatencies(String label, LatencyHistogram histogram) {
+        System.out.printf("%-15s p50 %d us, p90 %d us, p99 %d us, p99.9 %d us (%d calls)%n",
+                          label,
+                          histogram.percentileMicros(50),
+                          histogram.percentileMicros(90),
+                          histogram.percentileMicros(99),
+                          histogram.percentileMicros(99.9),
+                          histogram.getCount());
+    }
+
+    private static String format(Map<Status.Code, LongAdder> counts) {
+        if (counts.isEmpty()) {
+            return "none";
+        }
+        Map<Status.Code, Long> sorted = new EnumMap<>(Status.Code.class);
+        counts.forEach((code, count) -> sorted.put(code, count.sum()));
+        return sorted.toString();
+    }
+
+    private static final class Backend {
+        private final int port;
+        private final ServiceDiscovery discovery;
+        private final ServerLifecycle lifecycle;
+
+        Backend(int port, ServiceDiscovery discovery, ServerLifecycle lifecycle) {
+            this.port = port;
+            this.discovery = discovery;
+            this.lifecycle = lifecycle;
+        }
+
+        static URI uri(int port) {
+            return URI.create("dns://localhost:" + port);
+        }
+
+        void stop() {
+            try {
+                lifecycle.shutdown();
+                discovery.close();
+            } catch (Exception e) {
+                // Already stopped by the scenario
+            }
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package se.lars.grpc.caching;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import se.lars.grpc.resources.SharedResources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Interceptor caching the responses of unary methods without side effects, keyed by the authority
+ * of the channel, method and the serialized request.  Concurrent identical requests are collapsed into a single call to the backend
+ * and share its outcome, including failures.  Only successful responses are cached.
+ * <p>
+ * Methods are cached if they are marked safe in their {@link MethodDescriptor}, unless disabled, or
+ * added explicitly.  Request headers are not part of the key so methods whose response depends on
+ * the caller, e.g. through credentials, must not be cached.
+ * <p>
+ * The collapsed call belongs to none of the callers, it is sent without a deadline and outside their
+ * cancellation, and is cancelled once they have all given up.  Each caller still fails with its own
+ * deadline or cancellation.  A {@code CANCELLED} or {@code DEADLINE_EXCEEDED} outcome is not shared,
+ * the callers still waiting send their requests on calls of their own instead.
+ * <p>
+ * Responses not received on a call of the caller's own, from the cache or a collapsed call, are
+ * delivered on the executor of the call options, or else on the executor of the interceptor, never
+ * on a transport thread or the caller's thread.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * CachingClientInterceptor cache = CachingClientInterceptor.newBuilder()
+ *                                                          .addMethod(FooGrpc.METHOD_GET_FOO)
+ *                                                          .setMaximumSize(10_000)
+ *                                                          .setTimeToLive(5, TimeUnit.SECONDS)
+ *                                                          .build();
+ * FooBlockingStub client = FooGrpc.newBlockingStub(channel).withInterceptors(cache);
+ * }
+ * </pre>
+ */
+public class CachingClientInterceptor implements ClientInterceptor {
+
+    private final Set<String> methods;
+    private final boolean cacheSafeMethods;
+    private final Cache<CacheKey, Object> cache;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<CacheKey, InFlightCall> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    private CachingClientInterceptor(Builder builder) {
+        this.methods = new HashSet<>(builder.methods);
+        this.cacheSafeMethods = builder.cacheSafeMethods;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(builder.maximumSize)
+                                 .expireAfterWrite(builder.timeToLiveNanos, TimeUnit.NANOSECONDS)
+                                 .recordStats()
+                                 .build();
+        this.executor = builder.executor;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> method,
+                                                               final CallOptions callOptions,
+                                                               final Channel next) {
+        if (method.getType() != MethodDescriptor.MethodType.UNARY
+                || !(methods.contains(method.getFullMethodName()) || (cacheSafeMethods && method.isSafe()))) {
+            return next.newCall(method, callOptions);
+        }
+        return new CachingClientCall<>(method, callOptions, next);
+    }
+
+    /**
+     * @return Calls answered from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Calls sent to the backend
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Calls answered by joining an identical call already in flight
+     */
+    public long getCollapsedCount() {
+        return collapsed.sum();
+    }
+
+    /**
+     * @return Responses evicted because the cache was full or the response expired
+     */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * @return Number of cached responses
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Drop all cached responses.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private static final class CacheKey {
+        private final String authority;
+        private final String method;
+        private final byte[] request;
+        private final int hash;
+
+        CacheKey(String authority, String method, byte[] request) {
+            this.authority = authority;
+            this.method = method;
+            this.request = request;
+            this.hash = 31 * (31 * authority.hashCode() + method.hashCode()) + Arrays.hashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CacheKey that = (CacheKey) o;
+            return hash == that.hash
+                    && authority.equals(that.authority)
+                    && method.equals(that.method)
+                    && Arrays.equals(request, that.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Call sent to the backend on behalf of the identical calls waiting for it.  It runs in a forked
+     * context without a deadline, so no single caller's deadline or cancellation ends it, and it is
+     * cancelled once all callers have given up.
+     */
+    private final class InFlightCall {
+        private final CacheKey key;
+        private final Set<CachingClientCall<?, ?>> participants = new HashSet<>();
+        private ClientCall<?, ?> call;
+        private boolean done;
+        private Object response;
+        private Status status;
+        private Metadata headers;
+        private Metadata trailers;
+
+        InFlightCall(CacheKey key) {
+            this.key = key;
+        }
+
+        <ReqT, RespT> void start(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next,
+                                 Context context, Metadata requestHeaders, boolean messageCompression, ReqT request) {
+            Context forked = context.fork();
+            Context previous = forked.attach();
+            try {
+                // Responses are only recorded here, the participants deliver them on their own executors
+                ClientCall<ReqT, RespT> call = next.newCall(method, callOptions.withDeadline(null).withExecutor(executor));
+                synchronized (this) {
+                    this.call = call;
+                }
+                call.start(new ClientCall.Listener<RespT>() {
+                    private Metadata headers = new Metadata();
+                    private RespT response;
+
+                    @Override
+                    public void onHeaders(Metadata headers) {
+                        this.headers = headers;
+                    }
+
+                    @Override
+                    public void onMessage(RespT message) {
+                        response = message;
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        complete(response, status, headers, trailers);
+                    }
+                }, requestHeaders);
+                call.setMessageCompression(messageCompression);
+                call.request(2);
+                call.sendMessage(request);
+                call.halfClose();
+            } finally {
+                forked.detach(previous);
+            }
+        }
+
+        /**
+         * Wait for the outcome, or take it directly if the call already completed.
+         */
+        void join(CachingClientCall<?, ?> participant) {
+            synchronized (this) {
+                if (!done) {
+                    participants.add(participant);
+                    return;
+                }
+            }
+            participant.onOutcome(response, status, headers, trailers);
+        }
+
+        /**
+         * The participant gave up, cancel the call once nobody waits for it.
+         */
+        void leave(CachingClientCall<?, ?> participant) {
+            ClientCall<?, ?> toCancel;
+            synchronized (this) {
+                if (!participants.remove(participant) || !participants.isEmpty() || done) {
+                    return;
+                }
+                abandon();
+                toCancel = call;
+            }
+            inFlight.remove(key, this);
+            if (toCancel != null) {
+                toCancel.cancel("All collapsed calls gave up", null);
+            }
+        }
+
+        /**
+         * Starting the call failed, the other participants send their requests on calls of their own.
+         */
+        void failed(CachingClientCall<?, ?> starter) {
+            List<CachingClientCall<?, ?>> toRetry;
+            ClientCall<?, ?> toCancel;
+            synchronized (this) {
+                participants.remove(starter);
+                toRetry = new ArrayList<>(participants);
+                abandon();
+                toCancel = call;
+            }
+            inFlight.remove(key, this);
+            if (toCancel != null) {
+                toCancel.cancel("Failed to start collapsed call", null);
+            }
+            for (CachingClientCall<?, ?> participant : toRetry) {
+                participant.startOwnCall();
+            }
+        }
+
+        // Late joiners see an outcome that isn't shared and send their requests on calls of their own
+        private void abandon() {
+            participants.clear();
+            status = Status.CANCELLED.withDescription("Collapsed call abandoned");
+            headers = new Metadata();
+            trailers = new Metadata();
+            done = true;
+        }
+
+        private void complete(Object response, Status status, Metadata headers, Metadata trailers) {
+            if (status.isOk() && response != null) {
+                cache.put(key, response);
+            }
+            inFlight.remove(key, this);
+            List<CachingClientCall<?, ?>> toComplete;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.response = response;
+                this.status = status;
+                this.headers = headers;
+                this.trailers = trailers;
+                this.done = true;
+                toComplete = new ArrayList<>(participants);
+                participants.clear();
+            }
+            for (CachingClientCall<?, ?> participant : toComplete) {
+                participant.onOutcome(response, status, headers, trailers);
+            }
+        }
+    }
+
+    private final class CachingClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+        private final MethodDescriptor<ReqT, RespT> method;
+        private final CallOptions callOptions;
+        private final Channel next;
+        private final Context context = Context.current();
+        private final Context.CancellationListener cancellationListener = context -> leave(Contexts.statusFromCancelled(context));
+
+        private Listener<RespT> responseListener;
+        private Metadata headers;
+        private ReqT message;
+        private Object cachedResponse;
+        private volatile InFlightCall joined;
+
+        // Guarded by this, the outcome arrives on other threads
+        private int numMessages;
+        private boolean messageCompressionEnabled;
+        private boolean halfClosed;
+        private boolean delivered;
+        private ScheduledFuture<?> deadlineTimer;
+        // Call of its own, when the outcome of the shared call doesn't apply to this request
+        private ClientCall<ReqT, RespT> delegate;
+
+        CachingClientCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+            this.method = method;
+            this.callOptions = callOptions;
+            this.next = next;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            Preconditions.checkArgument(responseListener != null, "responseListener cannot be null");
+            Preconditions.checkArgument(headers != null, "Headers cannot be null");
+            this.responseListener = responseListener;
+            this.headers = headers;
+        }
+
+        @Override
+        public void request(int numMessages) {
+            ClientCall<ReqT, RespT> call;
+            synchronized (this) {
+                call = delegate;
+                if (call == null) {
+                    this.numMessages += numMessages;
+                    return;
+                }
+            }
+            call.request(numMessages);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enabled) {
+            ClientCall<ReqT, RespT> call;
+            synchronized (this) {
+                messageCompressionEnabled = enabled;
+                call = delegate;
+            }
+            if (call != null) {
+                call.setMessageCompression(enabled);
+            }
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            Preconditions.checkState(this.message == null, "Expecting only one message to be sent");
+            this.message = message;
+            CacheKey key = new CacheKey(String.valueOf(next.authority()), method.getFullMethodName(), serialize(message));
+            Object response = cache.getIfPresent(key);
+            if (response != null) {
+                hits.increment();
+                cachedResponse = response;
+                return;
+            }
+
+            InFlightCall call = new InFlightCall(key);
+            InFlightCall existing = inFlight.putIfAbsent(key, call);
+            if (existing != null) {
+                collapsed.increment();
+                join(existing);
+                return;
+            }
+
+            misses.increment();
+            join(call);
+            boolean started = false;
+            try {
+                boolean compression;
+                synchronized (this) {
+                    compression = messageCompressionEnabled;
+                }
+                call.start(method, callOptions, next, context, headers, compression, message);
+                started = true;
+            } finally {
+                if (!started) {
+                    call.failed(this);
+                }
+            }
+        }
+
+        @Override
+        public void halfClose() {
+            ClientCall<ReqT, RespT> call;
+            synchronized (this) {
+                halfClosed = true;
+                call = delegate;
+            }
+            if (call != null) {
+                call.halfClose();
+            } else if (cachedResponse != null) {
+                deliver(cachedResponse, Status.OK, new Metadata(), new Metadata());
+            }
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            ClientCall<ReqT, RespT> call;
+            synchronized (this) {
+                call = delegate;
+            }
+            if (call != null) {
+                call.cancel(message, cause);
+                return;
+            }
+            Status status = Status.CANCELLED;
+            if (message != null) {
+                status = status.withDescription(message);
+            }
+            if (cause != null) {
+                status = status.withCause(cause);
+            }
+            leave(status);
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return delegate == null || delegate.isReady();
+        }
+
+        /**
+         * Wait for the shared call while enforcing this call's own deadline and cancellation.
+         */
+        private void join(InFlightCall call) {
+            joined = call;
+            call.join(this);
+            synchronized (this) {
+                if (delivered || delegate != null) {
+                    return;
+                }
+                Deadline deadline = callOptions.getDeadline();
+                if (deadline != null) {
+                    deadlineTimer = deadline.runOnExpiration(() -> leave(Status.DEADLINE_EXCEEDED.withDescription("Deadline exceeded waiting for collapsed call")),
+                                                             executor);
+                }
+                context.addListener(cancellationListener, MoreExecutors.directExecutor());
+            }
+        }
+
+        private void leave(Status status) {
+            InFlightCall call = joined;
+            if (call != null) {
+                call.leave(this);
+            }
+            deliver(null, status, new Metadata(), new Metadata());
+        }
+
+        private void onOutcome(Object response, Status status, Metadata headers, Metadata trailers) {
+            Status.Code code = status.getCode();
+            if (code == Status.Code.CANCELLED || code == Status.Code.DEADLINE_EXCEEDED) {
+                // Not necessarily true for this request, which has a deadline and cancellation of its own
+                startOwnCall();
+            } else {
+                deliver(response, status, copy(headers), copy(trailers));
+            }
+        }
+
+        /**
+         * Send the request on a call of its own, in this call's context and with its options.
+         */
+        private void startOwnCall() {
+            RuntimeException failure = null;
+            synchronized (this) {
+                if (delivered || delegate != null) {
+                    return;
+                }
+                stopWatching();
+                Context previous = context.attach();
+                ClientCall<ReqT, RespT> call = null;
+                try {
+                    call = next.newCall(method, callOptions);
+                    call.start(responseListener, headers);
+                    delegate = call;
+                    call.setMessageCompression(messageCompressionEnabled);
+                    if (numMessages > 0) {
+                        call.request(numMessages);
+                    }
+                    call.sendMessage(message);
+                    if (halfClosed) {
+                        call.halfClose();
+                    }
+                } catch (RuntimeException e) {
+                    if (delegate != null) {
+                        // Started, the listener is closed through the call
+                        call.cancel("Failed to send request", e);
+                    } else {
+                        failure = e;
+                    }
+                } finally {
+                    context.detach(previous);
+                }
+            }
+            if (failure != null) {
+                deliver(null, Status.fromThrowable(failure), new Metadata(), new Metadata());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver(Object response, Status status, Metadata headers, Metadata trailers) {
+            synchronized (this) {
+                if (delivered || delegate != null || responseListener == null) {
+                    return;
+                }
+                delivered = true;
+                stopWatching();
+            }
+            // Never on the thread completing the shared call or the caller's own thread
+            Executor callExecutor = callOptions.getExecutor() != null ? callOptions.getExecutor() : executor;
+            callExecutor.execute(() -> {
+                responseListener.onHeaders(headers);
+                if (status.isOk() && response != null) {
+                    responseListener.onMessage((RespT) response);
+                }
+                responseListener.onClose(status, trailers);
+            });
+        }
+
+        // Guarded by this
+        private void stopWatching() {
+            if (deadlineTimer != null) {
+                deadlineTimer.cancel(false);
+            }
+            context.removeListener(cancellationListener);
+        }
+
+        private byte[] serialize(ReqT message) {
+            try (InputStream stream = method.streamRequest(message)) {
+                return ByteStreams.toByteArray(stream);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private static Metadata copy(Metadata metadata) {
+        Metadata copy = new Metadata();
+        copy.merge(metadata);
+        return copy;
+    }
+
+    public static class Builder {
+        private final Set<String> methods = new HashSet<>();
+        private boolean cacheSafeMethods = true;
+        private long maximumSize = 10_000;
+        private long timeToLiveNanos = TimeUnit.SECONDS.toNanos(10);
+        private ScheduledExecutorService executor = SharedResources.getDefault().getScheduledExecutor();
+
+        /**
+         * Cache responses of the method, which must be unary and without side effects.
+         */
+        public Builder addMethod(MethodDescriptor<?, ?> method) {
+            Preconditions.checkArgument(method.getType() == MethodDescriptor.MethodType.UNARY,
+                                        "Only unary methods can be cached");
+            methods.add(method.getFullMethodName());
+            return this;
+        }
+
+        /**
+         * Whether to cache all unary methods marked safe in their descriptor, defaults to true.
+         */
+        public Builder setCacheSafeMethods(boolean cacheSafeMethods) {
+            this.cacheSafeMethods = cacheSafeMethods;
+            return this;
+        }
+
+        /**
+         * Maximum number of responses to cache, the least recently used are evicted first.
+         */
+        public Builder setMaximumSize(long maximumSize) {
+            Preconditions.checkArgument(maximumSize > 0, "Maximum size must be positive");
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Time a response is served from the cache after it was received.
+         */
+        public Builder setTimeToLive(long timeToLive, TimeUnit unit) {
+            Preconditions.checkArgument(timeToLive > 0, "Time to live must be positive");
+            this.timeToLiveNanos = unit.toNanos(timeToLive);
+            return this;
+        }
+
+        /**
+         * Executor used for enforcing the deadlines of calls waiting for an identical call, and for
+         * delivering responses to calls without an executor in their call options.  Listeners run on
+         * it, so it must not be the direct executor.
+         */
+        public Builder setExecutor(ScheduledExecutorService executor) {
+            this.executor = Preconditions.checkNotNull(executor, "executor");
+            return this;
+        }
+
+        public CachingClientInterceptor build() {
+            return new CachingClientInterceptor(this);
+        }
+    }
+}
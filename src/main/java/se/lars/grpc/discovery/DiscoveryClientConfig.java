@@ -0,0 +1,168 @@
+package se.lars.grpc.discovery;
+
+import com.google.common.base.Preconditions;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zookeeper client settings for {@link ServiceDiscovery}.
+ * <p>
+ * Reads can be served by a separate session, typically connected to observers so the read load of
+ * many discovery clients doesn't fall on the voting ensemble, and allowed to go read-only so
+ * discovery keeps serving the last known instances while the ensemble has lost its quorum.
+ * Registrations always use a session connected to {@code connectString}, a read-only session would
+ * neither accept them nor keep its ephemeral nodes when the quorum returns.  The write session is
+ * opened on the first write, so clients that only discover hold a single session.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * DiscoveryClientConfig config = DiscoveryClientConfig.newBuilder()
+ *                                                     .setConnectString("zk1:2181,zk2:2181,zk3:2181")
+ *                                                     .setReadConnectString("observer1:2181,observer2:2181")
+ *                                                     .setCanBeReadOnly(true)
+ *                                                     .setSessionTimeout(30, TimeUnit.SECONDS)
+ *                                                     .build();
+ * ServiceDiscovery discovery = new ServiceDiscovery(config);
+ * }
+ * </pre>
+ */
+public final class DiscoveryClientConfig {
+
+    private final String connectString;
+    private final String readConnectString;
+    private final boolean canBeReadOnly;
+    private final int sessionTimeoutMs;
+    private final int connectionTimeoutMs;
+    private final String namespace;
+    private final int baseRetrySleepMs;
+    private final int maxRetries;
+
+    private DiscoveryClientConfig(Builder builder) {
+        this.connectString = builder.connectString;
+        this.readConnectString = builder.readConnectString;
+        this.canBeReadOnly = builder.canBeReadOnly;
+        this.sessionTimeoutMs = builder.sessionTimeoutMs;
+        this.connectionTimeoutMs = builder.connectionTimeoutMs;
+        this.namespace = builder.namespace;
+        this.baseRetrySleepMs = builder.baseRetrySleepMs;
+        this.maxRetries = builder.maxRetries;
+    }
+
+    public String getConnectString() {
+        return connectString;
+    }
+
+    /**
+     * @return True if reads use a session of their own
+     */
+    public boolean hasSeparateReadClient() {
+        return readConnectString != null || canBeReadOnly;
+    }
+
+    /**
+     * @param threadFactory Factory for the client's threads, null for Curator's default
+     * @return A new, not yet started, client for reads or for writes
+     */
+    CuratorFramework newClient(boolean forReads, ThreadFactory threadFactory) {
+        CuratorFrameworkFactory.Builder builder = CuratorFrameworkFactory.builder()
+                                                                         .connectString(forReads && readConnectString != null ? readConnectString : connectString)
+                                                                         .canBeReadOnly(forReads && canBeReadOnly)
+                                                                         .sessionTimeoutMs(sessionTimeoutMs)
+                                                                         .connectionTimeoutMs(connectionTimeoutMs)
+                                                                         .namespace(namespace)
+                                                                         .retryPolicy(new ExponentialBackoffRetry(baseRetrySleepMs, maxRetries));
+        if (threadFactory != null) {
+            builder.threadFactory(threadFactory);
+        }
+        return builder.build();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String connectString;
+        private String readConnectString;
+        private boolean canBeReadOnly;
+        private int sessionTimeoutMs = 60_000;
+        private int connectionTimeoutMs = 15_000;
+        private String namespace;
+        private int baseRetrySleepMs = 1000;
+        private int maxRetries = 5;
+
+        /**
+         * Servers of the voting ensemble, used for registrations and, unless a read connect string is
+         * given, for reads.
+         */
+        public Builder setConnectString(String connectString) {
+            this.connectString = connectString;
+            return this;
+        }
+
+        /**
+         * Servers to read from, typically observers.  The ensemble forwards writes from observers to
+         * the leader, but registrations still use the session to {@code connectString}.
+         */
+        public Builder setReadConnectString(String readConnectString) {
+            this.readConnectString = readConnectString;
+            return this;
+        }
+
+        /**
+         * Let the read session connect to a server that has lost the quorum, serving possibly stale
+         * reads instead of none.  The servers must run with {@code readonlymode.enabled=true}.
+         */
+        public Builder setCanBeReadOnly(boolean canBeReadOnly) {
+            this.canBeReadOnly = canBeReadOnly;
+            return this;
+        }
+
+        /**
+         * Time without contact before the servers expire the session and its registrations.
+         */
+        public Builder setSessionTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+            this.sessionTimeoutMs = Math.toIntExact(unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * Time an operation waits for a connection before failing.
+         */
+        public Builder setConnectionTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+            this.connectionTimeoutMs = Math.toIntExact(unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * Path all znodes are kept under, e.g. to let several environments share an ensemble.
+         */
+        public Builder setNamespace(String namespace) {
+            this.namespace = namespace;
+            return this;
+        }
+
+        /**
+         * Retry failed operations with exponential backoff, defaults to 5 retries starting at one second.
+         */
+        public Builder setRetry(long baseSleep, TimeUnit unit, int maxRetries) {
+            Preconditions.checkArgument(baseSleep > 0, "Sleep must be positive");
+            Preconditions.checkArgument(maxRetries >= 0, "Retries must not be negative");
+            this.baseRetrySleepMs = Math.toIntExact(unit.toMillis(baseSleep));
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public DiscoveryClientConfig build() {
+            Preconditions.checkState(connectString != null, "Connect string must be set");
+            return new DiscoveryClientConfig(this);
+        }
+    }
+}
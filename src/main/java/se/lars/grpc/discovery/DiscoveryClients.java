@@ -0,0 +1,68 @@
+package se.lars.grpc.discovery;
+
+import org.apache.curator.framework.CuratorFramework;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Zookeeper clients of a {@link ServiceDiscovery}, a single client or a read client and a write
+ * client opened on first use, see {@link DiscoveryClientConfig}.
+ */
+final class DiscoveryClients implements Closeable {
+
+    private final DiscoveryClientConfig config;
+    private final ThreadFactory threadFactory;
+    private final CuratorFramework readClient;
+    private CuratorFramework writeClient;
+
+    /**
+     * @param threadFactory Factory for the clients' threads, null for Curator's default
+     */
+    DiscoveryClients(DiscoveryClientConfig config, ThreadFactory threadFactory) {
+        this.config = config;
+        this.threadFactory = threadFactory;
+        this.readClient = config.newClient(config.hasSeparateReadClient(), threadFactory);
+        this.readClient.start();
+        if (!config.hasSeparateReadClient()) {
+            this.writeClient = readClient;
+        }
+    }
+
+    /**
+     * Clients for a single, already started client.
+     */
+    DiscoveryClients(CuratorFramework client) {
+        this.config = null;
+        this.threadFactory = null;
+        this.readClient = client;
+        this.writeClient = client;
+    }
+
+    CuratorFramework reads() {
+        return readClient;
+    }
+
+    synchronized CuratorFramework writes() {
+        if (writeClient == null) {
+            writeClient = config.newClient(false, threadFactory);
+            writeClient.start();
+        }
+        return writeClient;
+    }
+
+    /**
+     * @return Whether the write client has been opened
+     */
+    synchronized boolean hasWriteClient() {
+        return writeClient != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writeClient != null && writeClient != readClient) {
+            writeClient.close();
+        }
+        readClient.close();
+    }
+}
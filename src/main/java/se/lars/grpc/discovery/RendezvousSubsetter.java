@@ -0,0 +1,80 @@
+package se.lars.grpc.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Selects a stable subset of at most {@code subsetSize} hosts for a client using rendezvous (highest
+ * random weight) hashing of the client id and each host.  Every client ranks the hosts differently,
+ * spreading clients evenly over the fleet, and a host joining or leaving only changes the subsets it
+ * is, or becomes, part of.
+ * <p>
+ * When a preferred zone is given the subset is filled from that zone first and only topped up with
+ * hosts from other zones if the zone has fewer than {@code subsetSize} hosts.
+ */
+public final class RendezvousSubsetter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final String clientId;
+    private final int subsetSize;
+    private final String preferredZone;
+
+    /**
+     * @param clientId Identifies the client, must be stable for the client's lifetime and unique
+     *  among the clients
+     * @param subsetSize Maximum number of hosts to select
+     * @param preferredZone Zone to select hosts from first, may be null
+     */
+    public RendezvousSubsetter(String clientId, int subsetSize, String preferredZone) {
+        Preconditions.checkArgument(clientId != null, "Client id cannot be null");
+        Preconditions.checkArgument(subsetSize > 0, "Subset size must be positive");
+        this.clientId = clientId;
+        this.subsetSize = subsetSize;
+        this.preferredZone = preferredZone;
+    }
+
+    public List<ServiceDiscovery.HostandZone> select(List<ServiceDiscovery.HostandZone> hosts) {
+        if (hosts.size() <= subsetSize) {
+            return hosts;
+        }
+        Comparator<ServiceDiscovery.HostandZone> byZone = Comparator.comparing(
+                host -> preferredZone != null && preferredZone.equals(host.getZone()) ? 0 : 1);
+        List<Ranked> ranked = new ArrayList<>(hosts.size());
+        for (ServiceDiscovery.HostandZone host : hosts) {
+            ranked.add(new Ranked(host, score(host)));
+        }
+        return ranked.stream()
+                     .sorted(Comparator.comparing((Ranked r) -> r.host, byZone)
+                                       .thenComparing(Comparator.comparingLong((Ranked r) -> r.score).reversed()))
+                     .limit(subsetSize)
+                     .map(r -> r.host)
+                     .collect(Collectors.toList());
+    }
+
+    private long score(ServiceDiscovery.HostandZone host) {
+        return HASH.newHasher()
+                   .putString(clientId, StandardCharsets.UTF_8)
+                   .putByte((byte) 0)
+                   .putString(host.getHostURI().toASCIIString(), StandardCharsets.UTF_8)
+                   .hash()
+                   .asLong();
+    }
+
+    private static final class Ranked {
+        private final ServiceDiscovery.HostandZone host;
+        private final long score;
+
+        Ranked(ServiceDiscovery.HostandZone host, long score) {
+            this.host = host;
+            this.score = score;
+        }
+    }
+}
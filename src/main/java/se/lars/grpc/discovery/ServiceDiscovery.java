@@ -1,20 +1,29 @@
 package se.lars.grpc.discovery;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
@@ -27,38 +36,79 @@ public class ServiceDiscovery implements Closeable {
     protected final static Logger LOGGER = LoggerFactory.getLogger(ServiceDiscovery.class);
     private static final String ZONE_DELIMITER_REGEX = "\\|\\*\\*\\|";
     private static final String ZONE_DELIMITER = "|**|";
+    // Sequential registrations need a name, Curator drops a trailing delimiter when using a namespace
+    private static final String INSTANCE_PREFIX = "instance-";
 
-    private CuratorFramework curatorFramework;
+    private final DiscoveryClients clients;
+    private final Map<String, String> registeredNodes = new ConcurrentHashMap<>();
+    private final Executor callbackExecutor;
+    private final boolean ownsClients;
+    private volatile boolean closed;
 
     private final static String UNKNOWN_ZONE = "UNKN";
 
 
     public ServiceDiscovery(final String address) {
-        curatorFramework = CuratorFrameworkFactory.newClient(address, new ExponentialBackoffRetry(1000, 5));
-        curatorFramework.start();
+        this(DiscoveryClientConfig.newBuilder().setConnectString(address).build());
+    }
+
+    /**
+     * Discovery through its own clients, closed with this instance.  {@link ServiceStateListener}
+     * updates run on a thread of this instance, reads on the Zookeeper event thread would block it
+     * from handling a session expiry.
+     */
+    public ServiceDiscovery(final DiscoveryClientConfig config) {
+        this(new DiscoveryClients(config, null),
+             Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("zk-discovery-callbacks-%s")
+                                                                         .setDaemon(true)
+                                                                         .build()),
+             true);
+    }
+
+    /**
+     * Discovery through a started client shared with other instances, e.g. all the name resolvers of
+     * a process.  Closing this instance stops its watches but leaves the client open.
+     *
+     * @param callbackExecutor Executor running {@link ServiceStateListener} updates instead of the
+     *  Zookeeper event thread, updates for one service are delivered in order
+     */
+    public ServiceDiscovery(final CuratorFramework curatorFramework, final Executor callbackExecutor) {
+        this(new DiscoveryClients(curatorFramework), callbackExecutor, false);
+    }
+
+    ServiceDiscovery(final DiscoveryClients clients, final Executor callbackExecutor, final boolean ownsClients) {
+        this.clients = clients;
+        this.callbackExecutor = callbackExecutor;
+        this.ownsClients = ownsClients;
     }
 
     public void registerService(final String serviceId, final URI endpointURI, final String zone) throws Exception {
         String znode = ensureNodeForServiceExists(serviceId);
-        curatorFramework
+        String storedUri = endpointURI.toASCIIString() + ZONE_DELIMITER + zone;
+        String path = clients.writes()
                 .create()
                 .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
-                .forPath(znode + ZK_DELIMETER, (endpointURI.toASCIIString() + ZONE_DELIMITER + zone).getBytes());
+                .forPath(znode + ZK_DELIMETER + INSTANCE_PREFIX, storedUri.getBytes());
+        registeredNodes.put(znode + ZK_DELIMETER + storedUri, path);
     }
 
     public void registerService(final String serviceId, final URI endpointURI) throws Exception {
         registerService(serviceId, endpointURI, UNKNOWN_ZONE);
     }
 
-    private String ensureNodeForServiceExists(String serviceId) throws Exception {
-        String znode = ZK_ROOT + ZK_DELIMETER + serviceId;
-        return ensureNodeExists(znode);
+    private static String serviceNode(String serviceId) {
+        return ZK_ROOT + ZK_DELIMETER + serviceId;
     }
 
-    private String ensureNodeExists(String znode) throws Exception {
-        if (curatorFramework.checkExists().creatingParentContainersIfNeeded().forPath(znode) == null) {
+    /**
+     * Only called when registering, reads treat a missing node as a service without instances so a
+     * client that only discovers never opens the write session.
+     */
+    private String ensureNodeForServiceExists(String serviceId) throws Exception {
+        String znode = serviceNode(serviceId);
+        if (clients.reads().checkExists().forPath(znode) == null) {
             try {
-                curatorFramework.create().creatingParentsIfNeeded().forPath(znode);
+                clients.writes().create().creatingParentsIfNeeded().forPath(znode);
             } catch (KeeperException.NodeExistsException e) {
                 //Another Thread/Service/Machine has just created this node for us.
             }
@@ -67,48 +117,71 @@ public class ServiceDiscovery implements Closeable {
     }
 
     public List<HostandZone> discover(final String serviceId) throws Exception {
-        String znode = ensureNodeForServiceExists(serviceId);
-        return getUrisForServiceNode(znode);
+        return getUrisForServiceNode(serviceNode(serviceId));
     }
 
     public List<URI> discoverUnzoned(final String serviceId) throws Exception {
-        String znode = ensureNodeForServiceExists(serviceId);
-        return getUrisForServiceNode(znode).stream().map(HostandZone::getHostURI).collect(Collectors.toList());
+        return getUrisForServiceNode(serviceNode(serviceId)).stream().map(HostandZone::getHostURI).collect(Collectors.toList());
     }
 
     private List<HostandZone> getUrisForServiceNode(String znode) throws Exception {
-        return getServicesForNode(znode).stream().map(storedString -> {
-            String[] split = storedString.split(ZONE_DELIMITER_REGEX);
-            return new HostandZone(URI.create(split[0]), split[1]);
-        }).collect(Collectors.toList());
+        List<String> children;
+        try {
+            children = clients.reads().getChildren().forPath(znode);
+        } catch (KeeperException.NoNodeException e) {
+            // Nothing registered yet
+            return new ArrayList<>();
+        }
+        List<HostandZone> instances = new ArrayList<>(children.size());
+        for (String child : children) {
+            try {
+                Stat stat = new Stat();
+                byte[] data = clients.reads().getData().storingStatIn(stat).forPath(znode + ZK_DELIMETER + child);
+                instances.add(parseServiceNode(data, stat.getCtime()));
+            } catch (KeeperException.NoNodeException e) {
+                // Deregistered since listing the children, the watch reports it
+            }
+        }
+        return instances;
     }
 
-    private List<String> getServicesForNode(String znode) throws Exception {
-        ensureNodeExists(znode);
-        List<String> children = curatorFramework.getChildren().forPath(znode);
-        return children.stream().map(child -> {
+    @VisibleForTesting
+    static HostandZone parseServiceNode(byte[] data, long ctime) {
+        String[] split = new String(data).split(ZONE_DELIMITER_REGEX);
+        return new HostandZone(URI.create(split[0]), split[1], ctime);
+    }
+
+    public boolean deregister(final String serviceId, final URI uriToDeregister, final String zone) throws Exception {
+        String znode = serviceNode(serviceId);
+        String path = registeredNodes.remove(znode + ZK_DELIMETER + uriToDeregister.toASCIIString() + ZONE_DELIMITER + zone);
+        if (path != null) {
+            // Registered through this instance, no need to scan the other registrations
             try {
-                return curatorFramework.getData().forPath(znode + ZK_DELIMETER + child);
+                clients.writes().delete().forPath(path);
+            } catch (KeeperException.NoNodeException e) {
+                //Session expired and took the ephemeral node with it.
+            }
+            return true;
+        }
+        CuratorFramework curatorFramework = clients.writes();
+        List<String> children;
+        try {
+            children = curatorFramework.getChildren().forPath(znode);
+        } catch (KeeperException.NoNodeException e) {
+            return true;
+        }
+        children.forEach(child -> {
+            try {
+                String storedUri = new String(curatorFramework.getData().forPath(znode + ZK_DELIMETER + child));
+                if (storedUri.equals(uriToDeregister.toASCIIString() + ZONE_DELIMITER + zone)) {
+                    curatorFramework.delete().forPath(znode + ZK_DELIMETER + child);
+                }
+            } catch (KeeperException.NoNodeException e) {
+                //Deregistered meanwhile.
             } catch (Exception e) {
                 throw Throwables.propagate(e);
             }
-        }).map(String::new).collect(Collectors.toList());
-    }
-
-    public boolean deregister(final String serviceId, final URI uriToDeregister, final String zone) throws Exception {
-        String znode = ensureNodeForServiceExists(serviceId);
-        curatorFramework.getChildren()
-                        .forPath(znode)
-                        .forEach(child -> {
-                            try {
-                                String storedUri = new String(curatorFramework.getData().forPath(znode + ZK_DELIMETER + child));
-                                if (storedUri.equals(uriToDeregister.toASCIIString() + ZONE_DELIMITER + zone)) {
-                                    curatorFramework.delete().forPath(znode + ZK_DELIMETER + child);
-                                }
-                            } catch (Exception e) {
-                                throw Throwables.propagate(e);
-                            }
-                        });
+        });
         return true;
     }
 
@@ -117,53 +190,185 @@ public class ServiceDiscovery implements Closeable {
     }
 
     public boolean watchForUpdates(final String serviceId, ServiceStateListener listener) throws Exception {
-        String znode = ensureNodeForServiceExists(serviceId);
-        return watchNodeForUpdates(znode, listener);
+        return watchNodeForUpdates(serviceNode(serviceId), listener, new SerialExecutor(callbackExecutor));
     }
 
-    private boolean watchNodeForUpdates(final String node, ServiceStateListener listener) throws Exception {
+    /**
+     * Watch the children of the node, or its creation while nothing has been registered yet.
+     */
+    private boolean watchNodeForUpdates(final String znode, ServiceStateListener listener, Executor executor) throws Exception {
         try {
-            String znode = ensureNodeExists(node);
-            curatorFramework.getChildren().usingWatcher((Watcher) watchedEvent -> {
+            while (true) {
                 try {
-                    watchNodeForUpdates(znode, listener);
-                    listener.update(getUrisForServiceNode(watchedEvent.getPath()));
-                } catch (Exception e) {
-                    throw Throwables.propagate(e);
+                    clients.reads().getChildren().usingWatcher(newWatcher(znode, listener, executor)).forPath(znode);
+                    return true;
+                } catch (KeeperException.NoNodeException e) {
+                    if (clients.reads().checkExists().usingWatcher(newWatcher(znode, listener, executor)).forPath(znode) == null) {
+                        return true;
+                    }
+                    // Created meanwhile, watch its children instead
                 }
-            }).forPath(znode);
+            }
         } catch (Exception e) {
             return false;
         }
-        return true;
+    }
+
+    private Watcher newWatcher(final String znode, ServiceStateListener listener, Executor executor) {
+        return watchedEvent -> executor.execute(() -> {
+            if (closed) {
+                return;
+            }
+            if (watchedEvent.getType() == Watcher.Event.EventType.None) {
+                switch (watchedEvent.getState()) {
+                    case Disconnected:
+                    case SyncConnected:
+                    case ConnectedReadOnly:
+                        // Connection events leave the watch in place, keep serving the last known instances
+                        return;
+                    default:
+                        // The session expired and took the watch with it
+                        rewatchNode(znode, listener, executor);
+                        return;
+                }
+            }
+            try {
+                if (!watchNodeForUpdates(znode, listener, executor)) {
+                    // Lost the connection before the watch was set again, e.g. the session expired meanwhile
+                    rewatchNode(znode, listener, executor);
+                    return;
+                }
+                listener.update(getUrisForServiceNode(watchedEvent.getPath()));
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        });
+    }
+
+    /**
+     * Watch the node again once a new session is up, and read the instances that changed while it was not.
+     * Runs in the background, the event thread of the expired session must not block on the new one.
+     */
+    private void rewatchNode(final String znode, ServiceStateListener listener, Executor executor) {
+        try {
+            clients.reads().getChildren()
+                   .usingWatcher(newWatcher(znode, listener, executor))
+                   .inBackground((client, event) -> executor.execute(() -> {
+                       if (closed) {
+                           return;
+                       }
+                       try {
+                           KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                           if (code == KeeperException.Code.NONODE) {
+                               // Removed meanwhile, a watch on a missing node is not kept, watch for its creation
+                               watchNodeForUpdates(znode, listener, executor);
+                           } else if (code != KeeperException.Code.OK) {
+                               LOGGER.warn("Failed to watch {}, {}, retrying", znode, code);
+                               rewatchNode(znode, listener, executor);
+                               return;
+                           }
+                           listener.update(getUrisForServiceNode(znode));
+                       } catch (Exception e) {
+                           throw Throwables.propagate(e);
+                       }
+                   }))
+                   .forPath(znode);
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
     }
 
     public boolean removeServiceRegistry(String serviceId) throws Exception {
-        String znode = ensureNodeForServiceExists(serviceId);
+        String znode = serviceNode(serviceId);
         try {
-            curatorFramework.delete().guaranteed().deletingChildrenIfNeeded().forPath(znode);
+            clients.writes().delete().guaranteed().deletingChildrenIfNeeded().forPath(znode);
+            return true;
+        } catch (KeeperException.NoNodeException e) {
             return true;
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
     }
 
+    /**
+     * @return The Curator client holding the registrations, e.g. for tests to expire its session
+     */
+    @VisibleForTesting
+    public CuratorFramework getCuratorFramework() {
+        return clients.writes();
+    }
+
     public interface ServiceStateListener {
         void update(List<HostandZone> newList);
     }
 
     @Override
     public void close() throws IOException {
-        curatorFramework.close();
+        closed = true;
+        if (ownsClients) {
+            clients.close();
+            if (callbackExecutor instanceof ExecutorService) {
+                ((ExecutorService) callbackExecutor).shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs tasks one at a time in submission order on the underlying executor.
+     */
+    private static final class SerialExecutor implements Executor {
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            executor.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to deliver service update", e);
+                }
+            }
+        }
     }
 
     public static class HostandZone {
         private final URI hostURI;
         private final String zone;
+        private final long registeredAt;
 
         public HostandZone(URI hostURI, String zone) {
+            this(hostURI, zone, 0);
+        }
+
+        public HostandZone(URI hostURI, String zone, long registeredAt) {
             this.hostURI = hostURI;
             this.zone = zone;
+            this.registeredAt = registeredAt;
         }
 
         public String getZone() {
@@ -174,6 +379,14 @@ public class ServiceDiscovery implements Closeable {
             return hostURI;
         }
 
+        /**
+         * @return Creation time of the registration in milliseconds since the epoch, as recorded by
+         *  Zookeeper, or 0 if unknown
+         */
+        public long getRegisteredAt() {
+            return registeredAt;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
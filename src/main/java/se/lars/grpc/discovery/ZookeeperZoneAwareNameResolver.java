@@ -1,5 +1,6 @@
 package se.lars.grpc.discovery;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
@@ -18,18 +19,58 @@ public class ZookeeperZoneAwareNameResolver extends NameResolver {
 
     private static Logger log = LoggerFactory.getLogger(ZookeeperZoneAwareNameResolver.class);
     public final String ZONE_KEY = "ZONE";
+    /**
+     * Attribute on each resolved address group holding the time the backend registered, in
+     * milliseconds since the epoch.
+     */
+    public static final Attributes.Key<Long> REGISTERED_AT_KEY = Attributes.Key.of("registeredAt");
+    /**
+     * Resolution attribute holding the number of connections to open to each backend.
+     */
+    public static final Attributes.Key<Integer> CONNECTIONS_PER_BACKEND_KEY = Attributes.Key.of("connectionsPerBackend");
+    /**
+     * Resolution attribute holding the number of connections a backend's pool may grow to under load.
+     */
+    public static final Attributes.Key<Integer> MAX_CONNECTIONS_PER_BACKEND_KEY = Attributes.Key.of("maxConnectionsPerBackend");
 
 
     private final URI targetUri;
     private final ServiceDiscovery serviceDiscovery;
     private final Comparator<ServiceDiscovery.HostandZone> zoneComparator;
+    private final RendezvousSubsetter subsetter;
+    private final Attributes attributes;
 
     public ZookeeperZoneAwareNameResolver(URI targetUri,
                                           ServiceDiscovery serviceDiscovery,
                                           Comparator<ServiceDiscovery.HostandZone> zoneComparator) {
+        this(targetUri, serviceDiscovery, zoneComparator, null);
+    }
+
+    /**
+     * @param subsetter Selects the subset of discovered hosts this client connects to, null to
+     *  connect to all of them
+     */
+    public ZookeeperZoneAwareNameResolver(URI targetUri,
+                                          ServiceDiscovery serviceDiscovery,
+                                          Comparator<ServiceDiscovery.HostandZone> zoneComparator,
+                                          RendezvousSubsetter subsetter) {
+        this(targetUri, serviceDiscovery, zoneComparator, subsetter, Attributes.EMPTY);
+    }
+
+    /**
+     * @param attributes Passed to the load balancer along with every resolution, e.g.
+     *  {@link #CONNECTIONS_PER_BACKEND_KEY}
+     */
+    public ZookeeperZoneAwareNameResolver(URI targetUri,
+                                          ServiceDiscovery serviceDiscovery,
+                                          Comparator<ServiceDiscovery.HostandZone> zoneComparator,
+                                          RendezvousSubsetter subsetter,
+                                          Attributes attributes) {
         this.targetUri = targetUri;
         this.serviceDiscovery = serviceDiscovery;
         this.zoneComparator = zoneComparator;
+        this.subsetter = subsetter;
+        this.attributes = attributes;
     }
 
 
@@ -47,7 +88,7 @@ public class ZookeeperZoneAwareNameResolver extends NameResolver {
             List<ServiceDiscovery.HostandZone> initialDiscovery = serviceDiscovery.discover(serviceName);
             logDiscoveredNodes(initialDiscovery);
             List<EquivalentAddressGroup> initialServers = convertToResolvedServers(initialDiscovery);
-            listener.onAddresses(initialServers, Attributes.EMPTY);
+            listener.onAddresses(initialServers, attributes);
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
@@ -56,7 +97,7 @@ public class ZookeeperZoneAwareNameResolver extends NameResolver {
             serviceDiscovery.watchForUpdates(serviceName, updatedList -> {
                 logDiscoveredNodes(updatedList);
                 List<EquivalentAddressGroup> resolvedServers = convertToResolvedServers(updatedList);
-                listener.onAddresses(resolvedServers, Attributes.EMPTY);
+                listener.onAddresses(resolvedServers, attributes);
             });
         } catch (Exception e) {
             throw Throwables.propagate(e);
@@ -69,7 +110,15 @@ public class ZookeeperZoneAwareNameResolver extends NameResolver {
                  nodes.stream().map(ServiceDiscovery.HostandZone::toString).collect(Collectors.joining(", ")));
     }
 
-    private List<EquivalentAddressGroup> convertToResolvedServers(List<ServiceDiscovery.HostandZone> newList) {
+    @VisibleForTesting
+    List<EquivalentAddressGroup> convertToResolvedServers(List<ServiceDiscovery.HostandZone> newList) {
+        if (subsetter != null) {
+            List<ServiceDiscovery.HostandZone> subset = subsetter.select(newList);
+            if (subset.size() < newList.size()) {
+                log.info("Using subset of {} out of {} nodes", subset.size(), newList.size());
+            }
+            newList = subset;
+        }
         return newList.stream()
                 .sorted(zoneComparator)
                 .map(hostandZone -> {
@@ -82,7 +131,9 @@ public class ZookeeperZoneAwareNameResolver extends NameResolver {
                             builder.add(address);
                         }
 
-                        return new EquivalentAddressGroup(builder);
+                        return new EquivalentAddressGroup(builder, Attributes.newBuilder()
+                                                                            .set(REGISTERED_AT_KEY, hostandZone.getRegisteredAt())
+                                                                            .build());
                     } catch (UnknownHostException e) {
                         throw Throwables.propagate(e);
                     }
@@ -1,28 +1,43 @@
 package se.lars.grpc.discovery;
 
+import java.io.Closeable;
 import java.net.URI;
 import java.util.Comparator;
+import java.util.UUID;
 import javax.annotation.Nullable;
 
 import io.grpc.Attributes;
 import io.grpc.NameResolver;
 import io.grpc.NameResolverProvider;
+import se.lars.grpc.resources.SharedResources;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 /**
  * Author stefanofranz
  */
-public class ZookeeperZoneAwareNameResolverProvider extends NameResolverProvider {
+public class ZookeeperZoneAwareNameResolverProvider extends NameResolverProvider implements Closeable {
 
     private static final String SCHEME = "zk";
-    private final String zookeeperAddress;
+    private final DiscoveryClientConfig discoveryConfig;
     private final Comparator<ServiceDiscovery.HostandZone> hostComparator;
-
-    private ZookeeperZoneAwareNameResolverProvider(String zookeeperAddress,
-                                                   Comparator<ServiceDiscovery.HostandZone> hostComparator) {
-        this.zookeeperAddress = zookeeperAddress;
+    private final RendezvousSubsetter subsetter;
+    private final Attributes attributes;
+    private final SharedResources sharedResources;
+    private DiscoveryClients sharedClients;
+    private boolean closed;
+
+    private ZookeeperZoneAwareNameResolverProvider(DiscoveryClientConfig discoveryConfig,
+                                                   Comparator<ServiceDiscovery.HostandZone> hostComparator,
+                                                   RendezvousSubsetter subsetter,
+                                                   Attributes attributes,
+                                                   SharedResources sharedResources) {
+        this.discoveryConfig = discoveryConfig;
         this.hostComparator = hostComparator;
+        this.subsetter = subsetter;
+        this.attributes = attributes;
+        this.sharedResources = sharedResources;
     }
 
     @Override
@@ -38,7 +53,21 @@ public class ZookeeperZoneAwareNameResolverProvider extends NameResolverProvider
     @Nullable
     @Override
     public NameResolver newNameResolver(URI targetUri, Attributes params) {
-        return new ZookeeperZoneAwareNameResolver(targetUri, new ServiceDiscovery(zookeeperAddress), hostComparator);
+        return new ZookeeperZoneAwareNameResolver(targetUri, newServiceDiscovery(), hostComparator, subsetter, attributes);
+    }
+
+    private ServiceDiscovery newServiceDiscovery() {
+        if (sharedResources == null) {
+            return new ServiceDiscovery(discoveryConfig);
+        }
+        synchronized (this) {
+            Preconditions.checkState(!closed, "Provider is closed");
+            if (sharedClients == null) {
+                // One session for all resolvers, it lives as long as the provider
+                sharedClients = new DiscoveryClients(discoveryConfig, sharedResources.newThreadFactory("zk-discovery-%s"));
+            }
+        }
+        return new ServiceDiscovery(sharedClients, sharedResources.getExecutor(), false);
     }
 
     @Override
@@ -46,6 +75,19 @@ public class ZookeeperZoneAwareNameResolverProvider extends NameResolverProvider
         return SCHEME;
     }
 
+    /**
+     * End the Zookeeper session shared by the resolvers when using {@link SharedResources}, channels
+     * resolved through the provider must be shut down first.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (sharedClients != null) {
+            sharedClients.close();
+            sharedClients = null;
+        }
+    }
+
     public static Builder newBuilder() {
         return new Builder();
     }
@@ -67,27 +109,103 @@ public class ZookeeperZoneAwareNameResolverProvider extends NameResolverProvider
 
     public static class Builder {
         private String zookeeperAddress;
+        private DiscoveryClientConfig discoveryConfig;
         private String zoneToPrefer;
+        private int subsetSize;
+        private String clientId;
+        private int connectionsPerBackend;
+        private int maxConnectionsPerBackend;
+        private SharedResources sharedResources;
 
         public Builder setZookeeperAddress(String zookeeperAddress) {
             this.zookeeperAddress = zookeeperAddress;
             return this;
         }
 
+        /**
+         * Zookeeper client settings, e.g. to read from observers, instead of
+         * {@link #setZookeeperAddress(String)}.
+         */
+        public Builder setDiscoveryConfig(DiscoveryClientConfig discoveryConfig) {
+            this.discoveryConfig = discoveryConfig;
+            return this;
+        }
+
         public Builder setPreferredZone(String zoneToPrefer) {
             this.zoneToPrefer = zoneToPrefer;
             return this;
         }
 
+        /**
+         * Connect to a stable subset of at most {@code subsetSize} of the discovered instances instead
+         * of all of them, so the number of connections doesn't grow with the fleet.  Instances in the
+         * preferred zone are selected first.
+         *
+         * @see RendezvousSubsetter
+         */
+        public Builder setSubsetSize(int subsetSize) {
+            this.subsetSize = subsetSize;
+            return this;
+        }
+
+        /**
+         * Id of this client used for subsetting, defaults to a random id per provider.  Must be unique
+         * among the clients for instances to be evenly spread.
+         */
+        public Builder setClientId(String clientId) {
+            this.clientId = clientId;
+            return this;
+        }
+
+        /**
+         * Open {@code connections} connections to each backend instead of one, growing the pool up to
+         * {@code maxConnections} while the streams on the open connections stay highly utilized.  Calls
+         * are spread over the connections of a backend by least outstanding calls.  Requires the channel
+         * to use {@link se.lars.grpc.loadbalancing.ConnectionPoolingLoadBalancerFactory}, directly or as
+         * delegate of another balancer.
+         */
+        public Builder setConnectionsPerBackend(int connections, int maxConnections) {
+            Preconditions.checkArgument(connections > 0, "Connections must be positive");
+            Preconditions.checkArgument(maxConnections >= connections, "Max connections less than connections");
+            this.connectionsPerBackend = connections;
+            this.maxConnectionsPerBackend = maxConnections;
+            return this;
+        }
+
+
+        /**
+         * Share one Zookeeper session among all name resolvers created by the provider and deliver
+         * discovery updates on the shared executor instead of a session per channel.  Use the same
+         * resources for the channels, see {@link SharedResources#newChannelBuilder(String)}.
+         */
+        public Builder setSharedResources(SharedResources sharedResources) {
+            this.sharedResources = sharedResources;
+            return this;
+        }
 
-        public NameResolverProvider build() {
+        public ZookeeperZoneAwareNameResolverProvider build() {
             Comparator<ServiceDiscovery.HostandZone> comparator;
             if (zoneToPrefer != null) {
                 comparator = getZoneComparator(zoneToPrefer);
             } else {
                 comparator = Comparator.comparing(hostandZone -> hostandZone.getHostURI().getHost(), Comparator.naturalOrder());
             }
-            return new ZookeeperZoneAwareNameResolverProvider(zookeeperAddress, comparator);
+            RendezvousSubsetter subsetter = null;
+            if (subsetSize > 0) {
+                subsetter = new RendezvousSubsetter(clientId != null ? clientId : UUID.randomUUID().toString(),
+                                                    subsetSize,
+                                                    zoneToPrefer);
+            }
+            Attributes.Builder attributes = Attributes.newBuilder();
+            if (connectionsPerBackend > 0) {
+                attributes.set(ZookeeperZoneAwareNameResolver.CONNECTIONS_PER_BACKEND_KEY, connectionsPerBackend)
+                          .set(ZookeeperZoneAwareNameResolver.MAX_CONNECTIONS_PER_BACKEND_KEY, maxConnectionsPerBackend);
+            }
+            DiscoveryClientConfig config = discoveryConfig;
+            if (config == null) {
+                config = DiscoveryClientConfig.newBuilder().setConnectString(zookeeperAddress).build();
+            }
+            return new ZookeeperZoneAwareNameResolverProvider(config, comparator, subsetter, attributes.build(), sharedResources);
         }
     }
 }
@@ -8,18 +8,25 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.util.RoundRobinLoadBalancerFactory;
 import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolverProvider;
+import se.lars.grpc.healthchecking.HealthCheckingLoadBalancerFactory;
+import se.lars.grpc.loadbalancing.OutlierDetectionLoadBalancerFactory;
 import se.lars.proto.Health;
 import se.lars.proto.PingPongGrpc;
 
-import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 
+/**
+ * Sends a few pings through the {@code zk://} resolver, see {@code ChurnHarness} in src/loadtest
+ * for measuring throughput and behaviour during churn.
+ */
 public class Client {
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws InterruptedException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10;
 
         ManagedChannel channel =
 //                ManagedChannelBuilder.forAddress("localhost", 8181)
@@ -28,18 +35,20 @@ public class Client {
                                                      .setZookeeperAddress("localhost:2181")
                                                      .build())
                         .usePlaintext(true)
-                        .loadBalancerFactory(RoundRobinLoadBalancerFactory.getInstance())
+                        .loadBalancerFactory(HealthCheckingLoadBalancerFactory.newBuilder()
+                                                     .setDelegate(OutlierDetectionLoadBalancerFactory.newBuilder()
+                                                                          .setDelegate(RoundRobinLoadBalancerFactory.getInstance())
+                                                                          .build())
+                                                     .build())
                         .build();
         PingPongGrpc.PingPongBlockingStub stub = PingPongGrpc.newBlockingStub(channel);
         //PingPongGrpc.PingPongFutureStub stub = PingPongGrpc.newFutureStub(channel);
         //stub.withInterceptors(new RetryClientInterceptor(Retryer.createDefault().maxRetries(5)));
-        boolean forever = true;
-        while (forever) {
-            //for (int i = 0; i < 100; i++) {
+        for (int i = 0; i < calls; i++) {
             try {
                 long start = System.nanoTime();
                 Health.Pong pong = withRetry(() -> stub.pingit(Health.Ping.newBuilder().build()), 5);
-                System.out.print(pong + " completed in: " + (System.nanoTime() - start) / 1_000 + " us.");
+                System.out.println(pong + " completed in: " + (System.nanoTime() - start) / 1_000 + " us.");
 
 //                ListenableFuture<Health.Pong> pingit = stub.pingit(Health.Ping.newBuilder().build());
 //                pingit.addListener(() -> {
@@ -70,12 +79,8 @@ public class Client {
 //            } catch (InterruptedException e) {
 //                e.printStackTrace();
 //            }
-//            }
-//            System.in.read();
         }
-        //channel.shutdown();
-
-        System.in.read();
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
 
     private static <T> T withRetry(ExceptionalSupplier<T> supplier, int maxAttempts) {
@@ -1,8 +1,12 @@
 package se.lars.grpc.example;
 
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.stub.StreamObserver;
 import se.lars.grpc.discovery.ServiceDiscovery;
+import se.lars.grpc.server.ConcurrencyLimitingServerInterceptor;
+import se.lars.grpc.server.InFlightCallsInterceptor;
+import se.lars.grpc.server.ServerLifecycle;
 import se.lars.proto.Health;
 import se.lars.proto.PingPongGrpc;
 
@@ -13,23 +17,31 @@ public class Server {
 
     public static void main(String[] args) throws Exception {
         int port = Integer.parseInt(args[0]);
+        InFlightCallsInterceptor inFlightCalls = new InFlightCallsInterceptor();
+        ConcurrencyLimitingServerInterceptor concurrencyLimiter = ConcurrencyLimitingServerInterceptor.newBuilder().build();
         io.grpc.Server server1 =
                 ServerBuilder.forPort(port)
-                             .addService(new PingPongGrpc.PingPongImplBase() {
+                             .addService(ServerInterceptors.intercept(new PingPongGrpc.PingPongImplBase() {
                                  @Override
                                  public void pingit(Health.Ping request, StreamObserver<Health.Pong> responseObserver) {
                                      responseObserver.onNext(Health.Pong.newBuilder().setMsg("Pong from server at port: " + port).build());
                                      responseObserver.onCompleted();
                                  }
-                             }).build();
-        server1.start();
+                             }, inFlightCalls, concurrencyLimiter)).build();
 
         ServiceDiscovery serviceDiscovery = new ServiceDiscovery("localhost:2181");
         String address = "localhost"; //resvoleAdress();
-        serviceDiscovery.registerService("demo", URI.create("dns://" + address + ":" + server1.getPort()));
+        ServerLifecycle lifecycle = ServerLifecycle.newBuilder()
+                                                   .setServer(server1)
+                                                   .setServiceDiscovery(serviceDiscovery)
+                                                   .setServiceId("demo")
+                                                   .setEndpointURI(URI.create("dns://" + address + ":" + port))
+                                                   .setInFlightCalls(inFlightCalls)
+                                                   .build();
+        lifecycle.start();
 
         System.in.read();
-        serviceDiscovery.deregister("demo", URI.create("dns://" + address + ":" + server1.getPort()));
+        lifecycle.shutdown();
         serviceDiscovery.close();
     }
 
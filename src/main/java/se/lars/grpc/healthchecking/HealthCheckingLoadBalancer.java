@@ -0,0 +1,175 @@
+package se.lars.grpc.healthchecking;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.lars.grpc.loadbalancing.FilteringLoadBalancer;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.net.SocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balancer created by {@link HealthCheckingLoadBalancerFactory}.  Probes are sent on an out-of-band
+ * channel per backend since subchannels can not carry calls of their own.
+ */
+class HealthCheckingLoadBalancer extends FilteringLoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(HealthCheckingLoadBalancer.class);
+    private static final Health.Ping PING = Health.Ping.newBuilder().build();
+
+    private final HealthCheckingLoadBalancerFactory config;
+    // Keyed by address alone since resolved servers carry attributes the subchannels don't
+    private final Map<List<SocketAddress>, Backend> backends = new ConcurrentHashMap<>();
+
+    HealthCheckingLoadBalancer(LoadBalancer.Helper helper, HealthCheckingLoadBalancerFactory config) {
+        super(helper, config.delegate, true);
+        this.config = config;
+    }
+
+    @Override
+    protected void onServersUpdated(List<EquivalentAddressGroup> servers) {
+        Set<List<SocketAddress>> current = new HashSet<>();
+        for (EquivalentAddressGroup server : servers) {
+            current.add(server.getAddresses());
+        }
+        backends.entrySet().removeIf(entry -> {
+            if (!current.contains(entry.getKey())) {
+                entry.getValue().shutdown();
+                return true;
+            }
+            return false;
+        });
+        for (EquivalentAddressGroup server : servers) {
+            backends.computeIfAbsent(server.getAddresses(), addresses -> new Backend(server));
+        }
+    }
+
+    @Override
+    protected boolean isExcluded(EquivalentAddressGroup server) {
+        Backend backend = backends.get(server.getAddresses());
+        return backend != null && !backend.healthy;
+    }
+
+    @Override
+    protected void onShutdown() {
+        backends.values().forEach(Backend::shutdown);
+        backends.clear();
+    }
+
+    @Override
+    public void onCallClosed(LoadBalancer.Subchannel subchannel, Status status, long elapsedNanos) {
+        if (status.isOk()) {
+            Backend backend = backends.get(subchannel.getAddresses().getAddresses());
+            if (backend != null) {
+                backend.lastSuccessNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private long nextDelayNanos() {
+        double jitter = config.jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (config.intervalNanos * (1 + jitter));
+    }
+
+    private final class Backend {
+        private final EquivalentAddressGroup server;
+        private final ManagedChannel channel;
+        private final PingPongGrpc.PingPongFutureStub stub;
+        private volatile long lastSuccessNanos;
+        private volatile ScheduledFuture<?> nextProbe;
+        private volatile boolean closed;
+        // Only written from the serialized context
+        private volatile boolean healthy = true;
+        private int consecutiveFailures;
+        private int consecutiveSuccesses;
+
+        Backend(EquivalentAddressGroup server) {
+            this.server = server;
+            this.channel = helper.createOobChannel(server, helper.getAuthority());
+            this.stub = PingPongGrpc.newFutureStub(channel);
+            this.lastSuccessNanos = System.nanoTime() - config.intervalNanos;
+            // First probe lands anywhere in the first interval to avoid synchronized probing
+            schedule((long) (ThreadLocalRandom.current().nextDouble() * config.intervalNanos));
+        }
+
+        private void schedule(long delayNanos) {
+            if (!closed) {
+                nextProbe = config.executor.schedule(this::probe, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void probe() {
+            if (closed) {
+                return;
+            }
+            if (healthy && System.nanoTime() - lastSuccessNanos < config.intervalNanos) {
+                // Real traffic already proved this backend alive
+                schedule(nextDelayNanos());
+                return;
+            }
+            Futures.addCallback(stub.withDeadlineAfter(config.timeoutNanos, TimeUnit.NANOSECONDS).pingit(PING),
+                                new FutureCallback<Health.Pong>() {
+                                    @Override
+                                    public void onSuccess(Health.Pong result) {
+                                        helper.runSerialized(() -> onProbeResult(Status.OK));
+                                    }
+
+                                    @Override
+                                    public void onFailure(Throwable t) {
+                                        helper.runSerialized(() -> onProbeResult(Status.fromThrowable(t)));
+                                    }
+                                }, MoreExecutors.directExecutor());
+        }
+
+        private void onProbeResult(Status status) {
+            if (closed || isShutdown()) {
+                return;
+            }
+            // A backend without the PingPong service still answered
+            boolean success = status.isOk() || status.getCode() == Status.Code.UNIMPLEMENTED;
+            if (success) {
+                consecutiveFailures = 0;
+                consecutiveSuccesses++;
+                if (!healthy && consecutiveSuccesses >= config.healthyThreshold) {
+                    log.info("Backend {} recovered, putting it back into rotation", server);
+                    healthy = true;
+                    refresh();
+                }
+            } else {
+                consecutiveSuccesses = 0;
+                consecutiveFailures++;
+                if (healthy && consecutiveFailures >= config.unhealthyThreshold) {
+                    log.warn("Backend {} failed {} health checks, last status {}, taking it out of rotation",
+                             server, consecutiveFailures, status);
+                    healthy = false;
+                    refresh();
+                }
+            }
+            schedule(nextDelayNanos());
+        }
+
+        private void shutdown() {
+            closed = true;
+            ScheduledFuture<?> probe = nextProbe;
+            if (probe != null) {
+                probe.cancel(false);
+            }
+            channel.shutdown();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package se.lars.grpc.healthchecking;
+
+import com.google.common.base.Preconditions;
+import io.grpc.LoadBalancer;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+import se.lars.grpc.resources.SharedResources;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancer factory that actively health checks every resolved backend using the PingPong
+ * service and withholds failing backends from a delegate balancer until they recover.
+ * <p>
+ * Each backend is pinged every interval, with jitter, and is taken out of rotation after
+ * {@code unhealthyThreshold} consecutive failed pings.  Backends that completed a call successfully
+ * within the last interval are not pinged at all, so probe traffic only goes to idle or suspect
+ * backends rather than growing with the size of the fleet.  Backends not implementing PingPong are
+ * considered healthy as long as they answer.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * ManagedChannelBuilder.forTarget("zk://demo")
+ *                      .nameResolverFactory(...)
+ *                      .loadBalancerFactory(HealthCheckingLoadBalancerFactory.newBuilder()
+ *                                                                            .setInterval(5, TimeUnit.SECONDS)
+ *                                                                            .build())
+ * }
+ * </pre>
+ */
+public class HealthCheckingLoadBalancerFactory extends LoadBalancer.Factory {
+    final LoadBalancer.Factory delegate;
+    final long intervalNanos;
+    final double jitter;
+    final long timeoutNanos;
+    final int unhealthyThreshold;
+    final int healthyThreshold;
+    final ScheduledExecutorService executor;
+
+    private HealthCheckingLoadBalancerFactory(Builder builder) {
+        this.delegate = builder.delegate;
+        this.intervalNanos = builder.intervalNanos;
+        this.jitter = builder.jitter;
+        this.timeoutNanos = builder.timeoutNanos;
+        this.unhealthyThreshold = builder.unhealthyThreshold;
+        this.healthyThreshold = builder.healthyThreshold;
+        this.executor = builder.executor;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new HealthCheckingLoadBalancer(helper, this);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private LoadBalancer.Factory delegate = RoundRobinLoadBalancerFactory.getInstance();
+        private long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+        private double jitter = 0.2;
+        private long timeoutNanos = TimeUnit.SECONDS.toNanos(1);
+        private int unhealthyThreshold = 2;
+        private int healthyThreshold = 1;
+        private ScheduledExecutorService executor = SharedResources.getDefault().getScheduledExecutor();
+
+        /**
+         * Balancer picking among the healthy backends, defaults to round robin.
+         */
+        public Builder setDelegate(LoadBalancer.Factory delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate, "delegate");
+            return this;
+        }
+
+        public Builder setInterval(long interval, TimeUnit unit) {
+            Preconditions.checkArgument(interval > 0, "Interval must be positive");
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Fraction of the interval each probe is randomly moved by, spreading probes from many clients.
+         */
+        public Builder setJitter(double jitter) {
+            Preconditions.checkArgument(jitter >= 0 && jitter < 1, "Jitter must be in [0, 1)");
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder setTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Consecutive failed pings before a backend is taken out of rotation.
+         */
+        public Builder setUnhealthyThreshold(int unhealthyThreshold) {
+            Preconditions.checkArgument(unhealthyThreshold > 0, "Threshold must be positive");
+            this.unhealthyThreshold = unhealthyThreshold;
+            return this;
+        }
+
+        /**
+         * Consecutive successful pings before an unhealthy backend is put back into rotation.
+         */
+        public Builder setHealthyThreshold(int healthyThreshold) {
+            Preconditions.checkArgument(healthyThreshold > 0, "Threshold must be positive");
+            this.healthyThreshold = healthyThreshold;
+            return this;
+        }
+
+        /**
+         * Executor used for scheduling probes.
+         */
+        public Builder setExecutor(ScheduledExecutorService executor) {
+            this.executor = Preconditions.checkNotNull(executor, "executor");
+            return this;
+        }
+
+        public HealthCheckingLoadBalancerFactory build() {
+            return new HealthCheckingLoadBalancerFactory(this);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Balancer created by {@link ConnectionPoolingLoadBalancerFactory}.
+ */
+class ConnectionPoolingLoadBalancer extends LoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPoolingLoadBalancer.class);
+
+    private final LoadBalancer.Helper helper;
+    private final ConnectionPoolingLoadBalancerFactory config;
+    private final Map<EquivalentAddressGroup, Backend> backends = new LinkedHashMap<>();
+    private final Map<Subchannel, Connection> connections = new HashMap<>();
+    private final ScheduledFuture<?> evaluation;
+    private int minConnections;
+    private int maxConnections;
+
+    ConnectionPoolingLoadBalancer(LoadBalancer.Helper helper, ConnectionPoolingLoadBalancerFactory config) {
+        this.helper = helper;
+        this.config = config;
+        this.minConnections = config.connectionsPerBackend;
+        this.maxConnections = config.maxConnectionsPerBackend;
+        this.evaluation = config.executor.scheduleWithFixedDelay(() -> helper.runSerialized(this::evaluate),
+                                                                config.intervalNanos,
+                                                                config.intervalNanos,
+                                                                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        Integer connectionsPerBackend = attributes.get(ZookeeperZoneAwareNameResolver.CONNECTIONS_PER_BACKEND_KEY);
+        Integer maxConnectionsPerBackend = attributes.get(ZookeeperZoneAwareNameResolver.MAX_CONNECTIONS_PER_BACKEND_KEY);
+        minConnections = connectionsPerBackend != null ? connectionsPerBackend : config.connectionsPerBackend;
+        maxConnections = Math.max(minConnections,
+                                  maxConnectionsPerBackend != null ? maxConnectionsPerBackend : config.maxConnectionsPerBackend);
+
+        Set<EquivalentAddressGroup> current = new LinkedHashSet<>();
+        for (EquivalentAddressGroup server : servers) {
+            // Attributes are not part of the identity of a backend
+            current.add(new EquivalentAddressGroup(server.getAddresses()));
+        }
+        backends.values().removeIf(backend -> {
+            if (!current.contains(backend.server)) {
+                backend.shutdown();
+                return true;
+            }
+            return false;
+        });
+        for (EquivalentAddressGroup server : current) {
+            Backend backend = backends.computeIfAbsent(server, Backend::new);
+            while (backend.pool.size() < minConnections) {
+                backend.addConnection();
+            }
+        }
+        updateBalancingState();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        if (backends.isEmpty()) {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+        }
+    }
+
+    @Override
+    public void handleSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+        Connection connection = connections.get(subchannel);
+        if (connection == null) {
+            return;
+        }
+        if (stateInfo.getState() == ConnectivityState.IDLE) {
+            subchannel.requestConnection();
+        }
+        connection.state = stateInfo;
+        updateBalancingState();
+    }
+
+    @Override
+    public void shutdown() {
+        evaluation.cancel(false);
+        for (Backend backend : backends.values()) {
+            backend.shutdown();
+        }
+        backends.clear();
+    }
+
+    private void updateBalancingState() {
+        List<Connection[]> ready = new ArrayList<>();
+        boolean connecting = false;
+        Status error = Status.UNAVAILABLE.withDescription("No backends resolved");
+        for (Backend backend : backends.values()) {
+            List<Connection> readyConnections = new ArrayList<>();
+            for (Connection connection : backend.pool) {
+                ConnectivityState state = connection.state.getState();
+                if (state == ConnectivityState.READY) {
+                    readyConnections.add(connection);
+                } else if (state == ConnectivityState.TRANSIENT_FAILURE) {
+                    error = connection.state.getStatus();
+                } else {
+                    connecting = true;
+                }
+            }
+            if (!readyConnections.isEmpty()) {
+                ready.add(readyConnections.toArray(new Connection[0]));
+            }
+        }
+        if (!ready.isEmpty()) {
+            helper.updateBalancingState(ConnectivityState.READY, new Picker(ready.toArray(new Connection[0][])));
+        } else if (connecting) {
+            helper.updateBalancingState(ConnectivityState.CONNECTING, new Picker(new Connection[0][]));
+        } else {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+        }
+    }
+
+    private void evaluate() {
+        boolean changed = false;
+        for (Backend backend : backends.values()) {
+            changed |= backend.evaluate();
+        }
+        if (changed) {
+            updateBalancingState();
+        }
+    }
+
+    private final class Backend {
+        private final EquivalentAddressGroup server;
+        private final List<Connection> pool = new ArrayList<>();
+        private int highIntervals;
+        private int lowIntervals;
+
+        Backend(EquivalentAddressGroup server) {
+            this.server = server;
+        }
+
+        private void addConnection() {
+            Connection connection = new Connection(helper.createSubchannel(server, Attributes.EMPTY));
+            pool.add(connection);
+            connections.put(connection.subchannel, connection);
+            connection.subchannel.requestConnection();
+        }
+
+        private void removeConnection(Connection connection) {
+            pool.remove(connection);
+            connections.remove(connection.subchannel);
+            // Calls in flight on the connection complete before the transport closes
+            connection.subchannel.shutdown();
+        }
+
+        /**
+         * @return True if the pool changed
+         */
+        private boolean evaluate() {
+            int ready = 0;
+            int outstanding = 0;
+            Connection leastLoaded = null;
+            for (Connection connection : pool) {
+                if (connection.state.getState() == ConnectivityState.READY) {
+                    ready++;
+                    outstanding += connection.outstanding.get();
+                    if (leastLoaded == null || connection.outstanding.get() < leastLoaded.outstanding.get()) {
+                        leastLoaded = connection;
+                    }
+                }
+            }
+            if (ready == 0 || ready < pool.size()) {
+                // Wait for all connections to be usable before judging the pool
+                highIntervals = 0;
+                lowIntervals = 0;
+                return false;
+            }
+
+            double streams = config.maxConcurrentStreams;
+            if (outstanding >= config.scaleUpUtilization * streams * ready) {
+                lowIntervals = 0;
+                if (++highIntervals >= config.scaleUpIntervals && pool.size() < maxConnections) {
+                    highIntervals = 0;
+                    addConnection();
+                    log.info("Scaling up {} to {} connections, {} outstanding calls", server.getAddresses(), pool.size(), outstanding);
+                    return true;
+                }
+            } else if (pool.size() > minConnections
+                    && outstanding < config.scaleUpUtilization * streams * (ready - 1) / 2) {
+                highIntervals = 0;
+                if (++lowIntervals >= config.scaleDownIntervals) {
+                    lowIntervals = 0;
+                    removeConnection(leastLoaded);
+                    log.info("Scaling down {} to {} connections, {} outstanding calls", server.getAddresses(), pool.size(), outstanding);
+                    return true;
+                }
+            } else {
+                highIntervals = 0;
+                lowIntervals = 0;
+            }
+            return false;
+        }
+
+        private void shutdown() {
+            for (Connection connection : pool) {
+                connections.remove(connection.subchannel);
+                connection.subchannel.shutdown();
+            }
+            pool.clear();
+        }
+    }
+
+    private static final class Connection {
+        private final Subchannel subchannel;
+        private final OutstandingCalls outstanding;
+        private volatile ConnectivityStateInfo state = ConnectivityStateInfo.forNonError(ConnectivityState.IDLE);
+
+        Connection(Subchannel subchannel) {
+            this.subchannel = subchannel;
+            this.outstanding = new OutstandingCalls(subchannel, null);
+        }
+    }
+
+    private static final class Picker extends SubchannelPicker {
+        private final Connection[][] backends;
+        private final AtomicInteger index = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+        Picker(Connection[][] backends) {
+            this.backends = backends;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            if (backends.length == 0) {
+                return PickResult.withNoResult();
+            }
+            Connection[] pool = backends[Math.floorMod(index.getAndIncrement(), backends.length)];
+            Connection best = pool[0];
+            for (int i = 1; i < pool.length; i++) {
+                if (pool[i].outstanding.get() < best.outstanding.get()) {
+                    best = pool[i];
+                }
+            }
+            return best.outstanding.getPickResult();
+        }
+    }
+}
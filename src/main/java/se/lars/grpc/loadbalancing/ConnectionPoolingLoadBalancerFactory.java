@@ -0,0 +1,145 @@
+package se.lars.grpc.loadbalancing;
+
+import com.google.common.base.Preconditions;
+import io.grpc.LoadBalancer;
+import se.lars.grpc.resources.SharedResources;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancer factory opening a pool of connections to each backend, so a single backend can take
+ * more concurrent calls than the server allows streams on one HTTP/2 connection and the load is not
+ * bound to a single event loop.
+ * <p>
+ * Calls go round robin over the backends and, within a backend, to the connection with the least
+ * outstanding calls.  The pool starts with the number of connections given by
+ * {@link se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver#CONNECTIONS_PER_BACKEND_KEY}, or the
+ * configured default, and grows by one connection at a time up to the maximum while the outstanding
+ * calls stay above {@code scaleUpUtilization} of the streams the ready connections allow for
+ * {@code scaleUpIntervals} consecutive intervals.  A pool that has grown shrinks again after a long
+ * period of low utilization, removed connections finish their calls before they are closed.
+ * <p>
+ * Utilization is judged against the streams the servers allow per connection, which has no default
+ * since gRPC servers allow unlimited streams unless configured otherwise.  Set it to the servers'
+ * {@code maxConcurrentCallsPerConnection}, or the limit of the proxy in front of them.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * ManagedChannelBuilder.forTarget("zk://foo")
+ *                      .nameResolverFactory(ZookeeperZoneAwareNameResolverProvider.newBuilder()
+ *                                                                                  .setZookeeperAddress(zookeeper)
+ *                                                                                  .setConnectionsPerBackend(2, 8)
+ *                                                                                  .build())
+ *                      .loadBalancerFactory(ConnectionPoolingLoadBalancerFactory.newBuilder()
+ *                                                                    .setMaxConcurrentStreams(100)
+ *                                                                    .build())
+ * }
+ * </pre>
+ */
+public class ConnectionPoolingLoadBalancerFactory extends LoadBalancer.Factory {
+    final int connectionsPerBackend;
+    final int maxConnectionsPerBackend;
+    final int maxConcurrentStreams;
+    final double scaleUpUtilization;
+    final int scaleUpIntervals;
+    final int scaleDownIntervals;
+    final long intervalNanos;
+    final ScheduledExecutorService executor;
+
+    private ConnectionPoolingLoadBalancerFactory(Builder builder) {
+        this.connectionsPerBackend = builder.connectionsPerBackend;
+        this.maxConnectionsPerBackend = builder.maxConnectionsPerBackend;
+        this.maxConcurrentStreams = builder.maxConcurrentStreams;
+        this.scaleUpUtilization = builder.scaleUpUtilization;
+        this.scaleUpIntervals = builder.scaleUpIntervals;
+        this.scaleDownIntervals = builder.scaleDownIntervals;
+        this.intervalNanos = builder.intervalNanos;
+        this.executor = builder.executor;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new ConnectionPoolingLoadBalancer(helper, this);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int connectionsPerBackend = 1;
+        private int maxConnectionsPerBackend = 1;
+        private int maxConcurrentStreams;
+        private double scaleUpUtilization = 0.75;
+        private int scaleUpIntervals = 3;
+        private int scaleDownIntervals = 60;
+        private long intervalNanos = TimeUnit.SECONDS.toNanos(1);
+        private ScheduledExecutorService executor = SharedResources.getDefault().getScheduledExecutor();
+
+        /**
+         * Connections per backend when the name resolver doesn't specify them.
+         */
+        public Builder setConnectionsPerBackend(int connections, int maxConnections) {
+            Preconditions.checkArgument(connections > 0, "Connections must be positive");
+            Preconditions.checkArgument(maxConnections >= connections, "Max connections less than connections");
+            this.connectionsPerBackend = connections;
+            this.maxConnectionsPerBackend = maxConnections;
+            return this;
+        }
+
+        /**
+         * Streams the servers allow per connection, their {@code MAX_CONCURRENT_STREAMS} setting as
+         * given by {@code NettyServerBuilder.maxConcurrentCallsPerConnection}.  Required.
+         */
+        public Builder setMaxConcurrentStreams(int maxConcurrentStreams) {
+            Preconditions.checkArgument(maxConcurrentStreams > 0, "Streams must be positive");
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            return this;
+        }
+
+        /**
+         * @param utilization Fraction of the available streams in use that counts as high
+         * @param intervals Consecutive intervals of high utilization before a connection is added
+         */
+        public Builder setScaleUp(double utilization, int intervals) {
+            Preconditions.checkArgument(utilization > 0 && utilization <= 1, "Utilization must be in (0, 1]");
+            Preconditions.checkArgument(intervals > 0, "Intervals must be positive");
+            this.scaleUpUtilization = utilization;
+            this.scaleUpIntervals = intervals;
+            return this;
+        }
+
+        /**
+         * @param intervals Consecutive intervals of low utilization before a grown pool gives back a connection
+         */
+        public Builder setScaleDown(int intervals) {
+            Preconditions.checkArgument(intervals > 0, "Intervals must be positive");
+            this.scaleDownIntervals = intervals;
+            return this;
+        }
+
+        /**
+         * Time between utilization checks.
+         */
+        public Builder setInterval(long interval, TimeUnit unit) {
+            Preconditions.checkArgument(interval > 0, "Interval must be positive");
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Executor used for scheduling utilization checks.
+         */
+        public Builder setExecutor(ScheduledExecutorService executor) {
+            this.executor = Preconditions.checkNotNull(executor, "executor");
+            return this;
+        }
+
+        public ConnectionPoolingLoadBalancerFactory build() {
+            Preconditions.checkState(maxConcurrentStreams > 0, "Max concurrent streams of the servers must be set");
+            return new ConnectionPoolingLoadBalancerFactory(this);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package se.lars.grpc.loadbalancing;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Balancer created by {@link ConsistentHashLoadBalancerFactory}.
+ */
+class ConsistentHashLoadBalancer extends LoadBalancer {
+
+
+    private final LoadBalancer.Helper helper;
+    private final ConsistentHashLoadBalancerFactory config;
+    private final Map<EquivalentAddressGroup, Backend> backends = new HashMap<>();
+    private final AtomicInteger totalOutstanding = new AtomicInteger();
+    private Picker picker;
+
+    ConsistentHashLoadBalancer(LoadBalancer.Helper helper, ConsistentHashLoadBalancerFactory config) {
+        this.helper = helper;
+        this.config = config;
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        Set<EquivalentAddressGroup> current = new HashSet<>();
+        for (EquivalentAddressGroup server : servers) {
+            // Attributes are not part of the identity of a backend
+            current.add(new EquivalentAddressGroup(server.getAddresses()));
+        }
+        boolean changed = backends.keySet().removeIf(server -> {
+            if (!current.contains(server)) {
+                backends.get(server).subchannel.shutdown();
+                return true;
+            }
+            return false;
+        });
+        for (EquivalentAddressGroup server : current) {
+            if (!backends.containsKey(server)) {
+                Backend backend = new Backend(server);
+                backends.put(server, backend);
+                backend.subchannel.requestConnection();
+                changed = true;
+            }
+        }
+        if (changed) {
+            // Sort so every client builds the same table from the same backends
+            List<Backend> sorted = backends.values()
+                                           .stream()
+                                           .sorted(Comparator.comparing(backend -> backend.name))
+                                           .collect(Collectors.toList());
+            picker = new Picker(sorted.toArray(new Backend[0]), populate(sorted));
+        }
+        updateBalancingState();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        if (picker == null || picker.backends.length == 0) {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+        }
+    }
+
+    @Override
+    public void handleSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+        Backend backend = backends.get(subchannel.getAddresses());
+        if (backend == null || backend.subchannel != subchannel) {
+            return;
+        }
+        if (stateInfo.getState() == ConnectivityState.IDLE) {
+            subchannel.requestConnection();
+        }
+        backend.state = stateInfo;
+        updateBalancingState();
+    }
+
+    @Override
+    public void shutdown() {
+        for (Backend backend : backends.values()) {
+            backend.subchannel.shutdown();
+        }
+        backends.clear();
+    }
+
+    private void updateBalancingState() {
+        boolean connecting = false;
+        Status error = Status.UNAVAILABLE.withDescription("No backends resolved");
+        for (Backend backend : backends.values()) {
+            ConnectivityState state = backend.state.getState();
+            if (state == ConnectivityState.READY) {
+                // Re-publishing the picker lets calls waiting for a connection proceed
+                helper.updateBalancingState(ConnectivityState.READY, picker);
+                return;
+            } else if (state == ConnectivityState.TRANSIENT_FAILURE) {
+                error = backend.state.getStatus();
+            } else {
+                connecting = true;
+            }
+        }
+        if (connecting) {
+            helper.updateBalancingState(ConnectivityState.CONNECTING, picker);
+        } else {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+        }
+    }
+
+    /**
+     * Fill the Maglev lookup table, each backend takes turns claiming the next free slot in its own
+     * permutation of the table until it is full.
+     * <p>
+     * The table is rebuilt rather than patched when the backends change, so it only depends on the
+     * current backends and all clients agree on the mapping whatever order they saw the changes in.
+     * The permutations are walked by adding the skip instead of a multiplication and modulo per probe.
+     */
+    private int[] populate(List<Backend> sorted) {
+        int size = config.tableSize;
+        int[] table = new int[size];
+        if (sorted.isEmpty()) {
+            return table;
+        }
+        Arrays.fill(table, -1);
+        int[] slots = new int[sorted.size()];
+        int[] skips = new int[sorted.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = sorted.get(i).offset;
+            skips[i] = sorted.get(i).skip;
+        }
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < slots.length; i++) {
+                int slot = slots[i];
+                while (table[slot] >= 0) {
+                    slot = next(slot, skips[i], size);
+                }
+                table[slot] = i;
+                slots[i] = next(slot, skips[i], size);
+                if (++filled == size) {
+                    return table;
+                }
+            }
+        }
+    }
+
+    private static int next(int slot, int skip, int size) {
+        int next = slot + skip;
+        return next >= size ? next - size : next;
+    }
+
+    /**
+     * 64-bit murmur3 over the chars of the key, four chars per block, so picks don't allocate.
+     */
+    static long hashKey(String key) {
+        int length = key.length();
+        long h = length;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            long block = key.charAt(i)
+                    | (long) key.charAt(i + 1) << 16
+                    | (long) key.charAt(i + 2) << 32
+                    | (long) key.charAt(i + 3) << 48;
+            h ^= mixBlock(block);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) key.charAt(i) << shift;
+        }
+        return fmix64(h ^ mixBlock(tail));
+    }
+
+    private static long mixBlock(long block) {
+        return Long.rotateLeft(block * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL;
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final class Backend {
+        private final String name;
+        private final Subchannel subchannel;
+        private final int offset;
+        private final int skip;
+        private final OutstandingCalls outstanding;
+        private volatile ConnectivityStateInfo state = ConnectivityStateInfo.forNonError(ConnectivityState.IDLE);
+
+        Backend(EquivalentAddressGroup server) {
+            this.name = server.getAddresses().toString();
+            this.subchannel = helper.createSubchannel(server, Attributes.EMPTY);
+            HashCode hash = Hashing.murmur3_128().hashString(name, StandardCharsets.UTF_8);
+            byte[] bytes = hash.asBytes();
+            long h1 = hash.asLong();
+            long h2 = 0;
+            for (int i = 8; i < 16; i++) {
+                h2 = (h2 << 8) | (bytes[i] & 0xff);
+            }
+            this.offset = (int) Math.floorMod(h1, (long) config.tableSize);
+            this.skip = (int) Math.floorMod(h2, (long) config.tableSize - 1) + 1;
+            this.outstanding = new OutstandingCalls(subchannel, totalOutstanding);
+        }
+
+        private boolean isReady() {
+            return state.getState() == ConnectivityState.READY;
+        }
+    }
+
+    private final class Picker extends SubchannelPicker {
+        private final Backend[] backends;
+        private final int[] table;
+        private final int maxSteps;
+
+        Picker(Backend[] backends, int[] table) {
+            this.backends = backends;
+            this.table = table;
+            this.maxSteps = (int) Math.min(table.length, 4L * backends.length + 1);
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            if (backends.length == 0) {
+                return PickResult.withNoResult();
+            }
+            String key = args.getCallOptions().getOption(ConsistentHashLoadBalancerFactory.HASH_KEY);
+            if (key == null && config.header != null) {
+                key = args.getHeaders().get(config.header);
+            }
+            long hash = key != null ? hashKey(key) : ThreadLocalRandom.current().nextLong();
+            int slot = (int) Math.floorMod(hash, (long) table.length);
+
+            int capacity = (int) Math.ceil(config.loadFactor * (totalOutstanding.get() + 1) / backends.length);
+            Backend fallback = null;
+            for (int step = 0; step < maxSteps; step++) {
+                Backend backend = backends[table[slot]];
+                if (backend.isReady()) {
+                    if (backend.outstanding.get() < capacity) {
+                        return backend.outstanding.getPickResult();
+                    }
+                    if (fallback == null) {
+                        fallback = backend;
+                    }
+                }
+                if (++slot == table.length) {
+                    slot = 0;
+                }
+            }
+            return fallback != null ? fallback.outstanding.getPickResult() : PickResult.withNoResult();
+        }
+    }
+}
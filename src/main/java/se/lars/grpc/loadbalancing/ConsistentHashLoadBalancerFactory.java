@@ -0,0 +1,96 @@
+package se.lars.grpc.loadbalancing;
+
+import com.google.common.base.Preconditions;
+import io.grpc.CallOptions;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+
+import java.math.BigInteger;
+
+/**
+ * Load balancer factory routing calls with the same key to the same backend, keeping per-key state
+ * such as caches on the backends effective.
+ * <p>
+ * The key is taken from {@link #HASH_KEY} in the call options, or else from the configured request
+ * header.  Calls without a key are spread randomly.  Keys are mapped to backends through a Maglev
+ * lookup table, so a backend joining or leaving only moves the keys it gains or loses, and all
+ * clients seeing the same backends agree on the mapping.  Each pick hashes the chars of the key with
+ * 64-bit murmur3 and looks it up in the table without allocation when the key is passed in the call
+ * options, reading a header allocates the parsed value.
+ * <p>
+ * Load is bounded: a backend with more than {@code loadFactor} times the average number of
+ * outstanding calls is skipped in favour of the next backend in the table, so a hot key can not
+ * overload a single backend.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * FooBlockingStub client = FooGrpc.newBlockingStub(channel)
+ *                                 .withOption(ConsistentHashLoadBalancerFactory.HASH_KEY, userId);
+ * }
+ * </pre>
+ */
+public class ConsistentHashLoadBalancerFactory extends LoadBalancer.Factory {
+
+    /**
+     * Call option holding the key to route the call by.
+     */
+    public static final CallOptions.Key<String> HASH_KEY = CallOptions.Key.of("consistentHashKey", null);
+
+    final Metadata.Key<String> header;
+    final int tableSize;
+    final double loadFactor;
+
+    private ConsistentHashLoadBalancerFactory(Builder builder) {
+        this.header = builder.header != null ? Metadata.Key.of(builder.header, Metadata.ASCII_STRING_MARSHALLER) : null;
+        this.tableSize = builder.tableSize;
+        this.loadFactor = builder.loadFactor;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new ConsistentHashLoadBalancer(helper, this);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String header;
+        private int tableSize = 65537;
+        private double loadFactor = 1.25;
+
+        /**
+         * Request header to take the key from when {@link #HASH_KEY} is not set.
+         */
+        public Builder setHeader(String header) {
+            this.header = header;
+            return this;
+        }
+
+        /**
+         * Size of the lookup table, must be a prime considerably larger than the number of backends.
+         */
+        public Builder setTableSize(int tableSize) {
+            Preconditions.checkArgument(tableSize > 2 && BigInteger.valueOf(tableSize).isProbablePrime(32),
+                                        "Table size must be a prime");
+            this.tableSize = tableSize;
+            return this;
+        }
+
+        /**
+         * Maximum outstanding calls on a backend relative to the average before keys spill over to the
+         * next backend.
+         */
+        public Builder setLoadFactor(double loadFactor) {
+            Preconditions.checkArgument(loadFactor > 1, "Load factor must be greater than 1");
+            this.loadFactor = loadFactor;
+            return this;
+        }
+
+        public ConsistentHashLoadBalancerFactory build() {
+            return new ConsistentHashLoadBalancerFactory(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+
+/**
+ * Picker failing every call with the same error, for balancers without a usable backend.
+ */
+final class ErrorPicker extends LoadBalancer.SubchannelPicker {
+    private final LoadBalancer.PickResult result;
+
+    ErrorPicker(Status error) {
+        this.result = LoadBalancer.PickResult.withError(error);
+    }
+
+    @Override
+    public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Base for balancers that take backends in and out of rotation by withholding their address groups
+ * from a delegate balancer.  The delegate only ever sees the eligible subset of the resolved servers.
+ * If every server would be excluded the full list is passed through instead, a degraded backend is
+ * preferred over failing every call locally.
+ * <p>
+ * All methods are invoked from the channel's serialized context, use {@link #refreshLater()} to
+ * re-evaluate eligibility from other threads.
+ */
+public abstract class FilteringLoadBalancer extends ForwardingLoadBalancer
+        implements ObservingSubchannelPicker.CallObserver {
+
+    private static final Logger log = LoggerFactory.getLogger(FilteringLoadBalancer.class);
+
+    protected final LoadBalancer.Helper helper;
+    private final LoadBalancer delegate;
+
+    private List<EquivalentAddressGroup> servers = Collections.emptyList();
+    private Attributes attributes = Attributes.EMPTY;
+    private List<EquivalentAddressGroup> published;
+    private boolean shutdown;
+
+    /**
+     * @param helper The channel helper
+     * @param delegateFactory Factory for the balancer picking among the eligible servers
+     * @param observeCalls If true the {@link ObservingSubchannelPicker.CallObserver} methods are
+     *  invoked for every call made through the delegate's pickers
+     */
+    protected FilteringLoadBalancer(LoadBalancer.Helper helper,
+                                    LoadBalancer.Factory delegateFactory,
+                                    boolean observeCalls) {
+        this.helper = helper;
+        ObservingSubchannelPicker.CallObserver observer = this;
+        this.delegate = delegateFactory.newLoadBalancer(!observeCalls ? helper : new ForwardingHelper() {
+            @Override
+            protected LoadBalancer.Helper delegate() {
+                return helper;
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public void updatePicker(LoadBalancer.SubchannelPicker picker) {
+                super.updatePicker(new ObservingSubchannelPicker(picker, observer));
+            }
+
+            @Override
+            public void updateBalancingState(ConnectivityState newState, LoadBalancer.SubchannelPicker newPicker) {
+                super.updateBalancingState(newState, new ObservingSubchannelPicker(newPicker, observer));
+            }
+        });
+    }
+
+    @Override
+    protected LoadBalancer delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        this.servers = servers;
+        this.attributes = attributes;
+        onServersUpdated(servers);
+        refresh();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        onShutdown();
+        super.shutdown();
+    }
+
+    /**
+     * The resolver published a new list of servers.  Called before eligibility is evaluated.
+     */
+    protected abstract void onServersUpdated(List<EquivalentAddressGroup> servers);
+
+    /**
+     * @return True if the server should currently be withheld from the delegate
+     */
+    protected abstract boolean isExcluded(EquivalentAddressGroup server);
+
+    /**
+     * The balancer is shutting down, release any resources held for the servers.
+     */
+    protected void onShutdown() {
+    }
+
+    @Override
+    public void onCallClosed(LoadBalancer.Subchannel subchannel, Status status, long elapsedNanos) {
+    }
+
+    protected final List<EquivalentAddressGroup> getServers() {
+        return servers;
+    }
+
+    protected final boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Re-evaluate eligibility and publish the result to the delegate if it changed.
+     */
+    protected final void refresh() {
+        if (shutdown) {
+            return;
+        }
+        List<EquivalentAddressGroup> eligible = servers.stream()
+                                                       .filter(server -> !isExcluded(server))
+                                                       .collect(Collectors.toList());
+        if (eligible.isEmpty() && !servers.isEmpty()) {
+            log.warn("All {} servers excluded, ignoring exclusions", servers.size());
+            eligible = servers;
+        }
+        if (!eligible.equals(published)) {
+            published = eligible;
+            delegate.handleResolvedAddressGroups(eligible, attributes);
+        }
+    }
+
+    /**
+     * Schedule a {@link #refresh()} on the channel's serialized context.
+     */
+    protected final void refreshLater() {
+        helper.runSerialized(this::refresh);
+    }
+}
@@ -0,0 +1,63 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolver;
+
+/**
+ * {@link LoadBalancer.Helper} that forwards all calls to a delegate.  Decorating balancers hand an
+ * instance of this to the balancer they wrap so they can intercept picker updates.
+ */
+public abstract class ForwardingHelper extends LoadBalancer.Helper {
+
+    protected abstract LoadBalancer.Helper delegate();
+
+    @Override
+    public LoadBalancer.Subchannel createSubchannel(EquivalentAddressGroup addrs, Attributes attrs) {
+        return delegate().createSubchannel(addrs, attrs);
+    }
+
+    @Override
+    public void updateSubchannelAddresses(LoadBalancer.Subchannel subchannel, EquivalentAddressGroup addrs) {
+        delegate().updateSubchannelAddresses(subchannel, addrs);
+    }
+
+    @Override
+    public ManagedChannel createOobChannel(EquivalentAddressGroup eag, String authority) {
+        return delegate().createOobChannel(eag, authority);
+    }
+
+    @Override
+    public void updateOobChannelAddresses(ManagedChannel channel, EquivalentAddressGroup eag) {
+        delegate().updateOobChannelAddresses(channel, eag);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void updatePicker(LoadBalancer.SubchannelPicker picker) {
+        delegate().updatePicker(picker);
+    }
+
+    @Override
+    public void updateBalancingState(ConnectivityState newState, LoadBalancer.SubchannelPicker newPicker) {
+        delegate().updateBalancingState(newState, newPicker);
+    }
+
+    @Override
+    public void runSerialized(Runnable task) {
+        delegate().runSerialized(task);
+    }
+
+    @Override
+    public NameResolver.Factory getNameResolverFactory() {
+        return delegate().getNameResolverFactory();
+    }
+
+    @Override
+    public String getAuthority() {
+        return delegate().getAuthority();
+    }
+}
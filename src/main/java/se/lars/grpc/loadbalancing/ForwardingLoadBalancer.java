@@ -0,0 +1,38 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+
+import java.util.List;
+
+/**
+ * {@link LoadBalancer} that forwards all events to a delegate.  Used as the base for balancers that
+ * decorate another policy, e.g. round robin, rather than managing subchannels themselves.
+ */
+public abstract class ForwardingLoadBalancer extends LoadBalancer {
+
+    protected abstract LoadBalancer delegate();
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        delegate().handleResolvedAddressGroups(servers, attributes);
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        delegate().handleNameResolutionError(error);
+    }
+
+    @Override
+    public void handleSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+        delegate().handleSubchannelState(subchannel, stateInfo);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate().shutdown();
+    }
+}
@@ -0,0 +1,129 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+/**
+ * {@link LoadBalancer.SubchannelPicker} that attaches a stream tracer to every pick made by a delegate
+ * picker so the outcome of each call can be attributed to the subchannel that carried it.  A tracer
+ * factory already set by the delegate is preserved and invoked as well.
+ */
+public final class ObservingSubchannelPicker extends LoadBalancer.SubchannelPicker {
+
+    /**
+     * Callback for calls made on picked subchannels.  Invoked on transport threads, implementations
+     * must be thread safe and cheap.
+     */
+    public interface CallObserver {
+        /**
+         * A stream was created on the subchannel.
+         */
+        default void onCallStarted(LoadBalancer.Subchannel subchannel) {
+        }
+
+        /**
+         * A stream on the subchannel was closed.
+         *
+         * @param subchannel The subchannel that carried the call
+         * @param status The status the call completed with
+         * @param elapsedNanos Time from stream creation until it was closed
+         */
+        void onCallClosed(LoadBalancer.Subchannel subchannel, Status status, long elapsedNanos);
+    }
+
+    private final LoadBalancer.SubchannelPicker delegate;
+    private final CallObserver observer;
+
+    public ObservingSubchannelPicker(LoadBalancer.SubchannelPicker delegate, CallObserver observer) {
+        this.delegate = delegate;
+        this.observer = observer;
+    }
+
+    @Override
+    public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+        LoadBalancer.PickResult result = delegate.pickSubchannel(args);
+        LoadBalancer.Subchannel subchannel = result.getSubchannel();
+        if (subchannel == null) {
+            return result;
+        }
+        return LoadBalancer.PickResult.withSubchannel(subchannel,
+                                                      new TracerFactory(subchannel, result.getStreamTracerFactory()));
+    }
+
+    private final class TracerFactory extends ClientStreamTracer.Factory {
+        private final LoadBalancer.Subchannel subchannel;
+        private final ClientStreamTracer.Factory next;
+
+        TracerFactory(LoadBalancer.Subchannel subchannel, ClientStreamTracer.Factory next) {
+            this.subchannel = subchannel;
+            this.next = next;
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(CallOptions callOptions, Metadata headers) {
+            ClientStreamTracer nextTracer = next != null ? next.newClientStreamTracer(callOptions, headers) : null;
+            observer.onCallStarted(subchannel);
+            return new Tracer(subchannel, nextTracer);
+        }
+    }
+
+    private final class Tracer extends ClientStreamTracer {
+        private final LoadBalancer.Subchannel subchannel;
+        private final ClientStreamTracer next;
+        private final long startNanos = System.nanoTime();
+
+        Tracer(LoadBalancer.Subchannel subchannel, ClientStreamTracer next) {
+            this.subchannel = subchannel;
+            this.next = next;
+        }
+
+        @Override
+        public void outboundHeaders() {
+            if (next != null) next.outboundHeaders();
+        }
+
+        @Override
+        public void inboundHeaders() {
+            if (next != null) next.inboundHeaders();
+        }
+
+        @Override
+        public void outboundMessage() {
+            if (next != null) next.outboundMessage();
+        }
+
+        @Override
+        public void inboundMessage() {
+            if (next != null) next.inboundMessage();
+        }
+
+        @Override
+        public void outboundWireSize(long bytes) {
+            if (next != null) next.outboundWireSize(bytes);
+        }
+
+        @Override
+        public void outboundUncompressedSize(long bytes) {
+            if (next != null) next.outboundUncompressedSize(bytes);
+        }
+
+        @Override
+        public void inboundWireSize(long bytes) {
+            if (next != null) next.inboundWireSize(bytes);
+        }
+
+        @Override
+        public void inboundUncompressedSize(long bytes) {
+            if (next != null) next.inboundUncompressedSize(bytes);
+        }
+
+        @Override
+        public void streamClosed(Status status) {
+            if (next != null) next.streamClosed(status);
+            observer.onCallClosed(subchannel, status, System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Balancer created by {@link OutlierDetectionLoadBalancerFactory}.
+ */
+class OutlierDetectionLoadBalancer extends FilteringLoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(OutlierDetectionLoadBalancer.class);
+
+    private final OutlierDetectionLoadBalancerFactory config;
+    // Keyed by address alone since resolved servers carry attributes the subchannels don't
+    private final Map<List<SocketAddress>, Backend> backends = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> evaluation;
+
+    OutlierDetectionLoadBalancer(LoadBalancer.Helper helper, OutlierDetectionLoadBalancerFactory config) {
+        super(helper, config.delegate, true);
+        this.config = config;
+        this.evaluation = config.executor.scheduleWithFixedDelay(() -> helper.runSerialized(this::evaluate),
+                                                                config.intervalNanos,
+                                                                config.intervalNanos,
+                                                                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    protected void onServersUpdated(List<EquivalentAddressGroup> servers) {
+        Set<List<SocketAddress>> current = new HashSet<>();
+        for (EquivalentAddressGroup server : servers) {
+            current.add(server.getAddresses());
+        }
+        backends.keySet().retainAll(current);
+        for (EquivalentAddressGroup server : servers) {
+            backends.computeIfAbsent(server.getAddresses(), addresses -> new Backend(server));
+        }
+    }
+
+    @Override
+    protected boolean isExcluded(EquivalentAddressGroup server) {
+        Backend backend = backends.get(server.getAddresses());
+        return backend != null && backend.ejected;
+    }
+
+    @Override
+    protected void onShutdown() {
+        evaluation.cancel(false);
+        backends.clear();
+    }
+
+    @Override
+    public void onCallClosed(LoadBalancer.Subchannel subchannel, Status status, long elapsedNanos) {
+        Backend backend = backends.get(subchannel.getAddresses().getAddresses());
+        if (backend == null) {
+            return;
+        }
+        if (config.failureCodes.contains(status.getCode())) {
+            backend.window.recordFailure();
+            if (backend.consecutiveFailures.incrementAndGet() == config.consecutiveFailures) {
+                // Don't wait for the next interval, a run of failures is a strong signal
+                helper.runSerialized(this::evaluate);
+            }
+        } else {
+            backend.window.recordSuccess();
+            backend.consecutiveFailures.set(0);
+        }
+    }
+
+    private void evaluate() {
+        if (isShutdown()) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean changed = false;
+        int ejected = 0;
+        List<Backend> outliers = new ArrayList<>();
+        for (Backend backend : backends.values()) {
+            if (backend.ejected) {
+                if (now - backend.ejectedUntilNanos >= 0) {
+                    log.info("Returning backend {} to rotation after ejection", backend.server);
+                    backend.restore();
+                    changed = true;
+                } else {
+                    ejected++;
+                }
+            } else if (backend.isOutlier()) {
+                outliers.add(backend);
+            } else {
+                backend.decay(now);
+            }
+        }
+
+        int maxEjected = config.maxEjectionPercent == 0 ? 0 : Math.max(1, backends.size() * config.maxEjectionPercent / 100);
+        outliers.sort(Comparator.comparingDouble(Backend::errorRate).reversed());
+        for (Backend backend : outliers) {
+            if (ejected >= maxEjected) {
+                if (maxEjected > 0) {
+                    log.warn("Not ejecting outlier {}, {} of {} backends already ejected",
+                             backend.server, ejected, backends.size());
+                }
+                continue;
+            }
+            backend.eject(now);
+            ejected++;
+            changed = true;
+        }
+        if (changed) {
+            refresh();
+        }
+    }
+
+    private final class Backend {
+        private final EquivalentAddressGroup server;
+        private final SlidingWindowCounter window;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        // Only accessed from the serialized context
+        private boolean ejected;
+        private long ejectedUntilNanos;
+        private int ejectionCount;
+        private long ejectionCountChangedNanos;
+
+        Backend(EquivalentAddressGroup server) {
+            this.server = server;
+            this.window = new SlidingWindowCounter(config.windowNanos, TimeUnit.NANOSECONDS, config.windowBuckets);
+        }
+
+        private double errorRate() {
+            long failures = window.getFailures();
+            long total = failures + window.getSuccesses();
+            return total == 0 ? 0 : (double) failures / total;
+        }
+
+        private boolean isOutlier() {
+            if (consecutiveFailures.get() >= config.consecutiveFailures) {
+                return true;
+            }
+            long failures = window.getFailures();
+            long total = failures + window.getSuccesses();
+            return total >= config.minimumRequests && (double) failures / total >= config.errorRateThreshold;
+        }
+
+        /**
+         * Forget one ejection for each base ejection time the backend has been healthy under load.
+         */
+        private void decay(long now) {
+            if (ejectionCount == 0 || now - ejectionCountChangedNanos < config.baseEjectionNanos) {
+                return;
+            }
+            long failures = window.getFailures();
+            long total = failures + window.getSuccesses();
+            if (total >= config.minimumRequests && (double) failures / total < config.errorRateThreshold) {
+                ejectionCount--;
+                ejectionCountChangedNanos = now;
+            }
+        }
+
+        private void eject(long now) {
+            long ejectionNanos = config.baseEjectionNanos << Math.min(ejectionCount, 30);
+            if (ejectionNanos <= 0 || ejectionNanos > config.maxEjectionNanos) {
+                ejectionNanos = config.maxEjectionNanos;
+            }
+            log.warn("Ejecting backend {} for {} ms, error rate {}, {} consecutive failures",
+                     server, TimeUnit.NANOSECONDS.toMillis(ejectionNanos), errorRate(), consecutiveFailures.get());
+            ejected = true;
+            ejectedUntilNanos = now + ejectionNanos;
+            ejectionCount++;
+        }
+
+        private void restore() {
+            ejected = false;
+            ejectionCountChangedNanos = System.nanoTime();
+            // Stats from before the ejection must not eject it again straight away
+            window.reset();
+            consecutiveFailures.set(0);
+        }
+    }
+}
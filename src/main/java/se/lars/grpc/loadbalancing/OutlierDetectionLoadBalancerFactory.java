@@ -0,0 +1,167 @@
+package se.lars.grpc.loadbalancing;
+
+import com.google.common.base.Preconditions;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+import se.lars.grpc.resources.SharedResources;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancer factory that passively tracks the outcome of calls to each backend and temporarily
+ * ejects outliers from a delegate balancer.
+ * <p>
+ * A backend is ejected when it returns {@code consecutiveFailures} failures in a row, or when its
+ * error rate over the sliding window exceeds {@code errorRateThreshold} given at least
+ * {@code minimumRequests} calls.  No more than {@code maxEjectionPercent} of the backends, but always
+ * allowing one unless the percentage is zero, are ejected at the same time.  The ejection time
+ * doubles for every repeated ejection up to {@code maxEjectionTime}, and halves again for every base
+ * ejection time the backend serves at least {@code minimumRequests} calls within the window below
+ * the error rate threshold.
+ * <p>
+ * Ejecting a failing backend also keeps calls retried by {@link se.lars.grpc.retry.RetryClientInterceptor}
+ * from landing on it again.
+ */
+public class OutlierDetectionLoadBalancerFactory extends LoadBalancer.Factory {
+    final LoadBalancer.Factory delegate;
+    final long intervalNanos;
+    final long windowNanos;
+    final int windowBuckets;
+    final Set<Status.Code> failureCodes;
+    final int consecutiveFailures;
+    final double errorRateThreshold;
+    final int minimumRequests;
+    final long baseEjectionNanos;
+    final long maxEjectionNanos;
+    final int maxEjectionPercent;
+    final ScheduledExecutorService executor;
+
+    private OutlierDetectionLoadBalancerFactory(Builder builder) {
+        this.delegate = builder.delegate;
+        this.intervalNanos = builder.intervalNanos;
+        this.windowNanos = builder.windowNanos;
+        this.windowBuckets = builder.windowBuckets;
+        this.failureCodes = builder.failureCodes;
+        this.consecutiveFailures = builder.consecutiveFailures;
+        this.errorRateThreshold = builder.errorRateThreshold;
+        this.minimumRequests = builder.minimumRequests;
+        this.baseEjectionNanos = builder.baseEjectionNanos;
+        this.maxEjectionNanos = builder.maxEjectionNanos;
+        this.maxEjectionPercent = builder.maxEjectionPercent;
+        this.executor = builder.executor;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new OutlierDetectionLoadBalancer(helper, this);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private LoadBalancer.Factory delegate = RoundRobinLoadBalancerFactory.getInstance();
+        private long intervalNanos = TimeUnit.SECONDS.toNanos(1);
+        private long windowNanos = TimeUnit.SECONDS.toNanos(10);
+        private int windowBuckets = 10;
+        private Set<Status.Code> failureCodes = EnumSet.of(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED);
+        private int consecutiveFailures = 5;
+        private double errorRateThreshold = 0.2;
+        private int minimumRequests = 20;
+        private long baseEjectionNanos = TimeUnit.SECONDS.toNanos(30);
+        private long maxEjectionNanos = TimeUnit.MINUTES.toNanos(5);
+        private int maxEjectionPercent = 20;
+        private ScheduledExecutorService executor = SharedResources.getDefault().getScheduledExecutor();
+
+        /**
+         * Balancer picking among the backends not ejected, defaults to round robin.
+         */
+        public Builder setDelegate(LoadBalancer.Factory delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate, "delegate");
+            return this;
+        }
+
+        /**
+         * How often error rates are evaluated and expired ejections are reverted.
+         */
+        public Builder setInterval(long interval, TimeUnit unit) {
+            Preconditions.checkArgument(interval > 0, "Interval must be positive");
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Length of the sliding window the error rate is calculated over.
+         */
+        public Builder setWindow(long window, TimeUnit unit, int buckets) {
+            Preconditions.checkArgument(window > 0, "Window must be positive");
+            Preconditions.checkArgument(buckets > 0, "Buckets must be positive");
+            this.windowNanos = unit.toNanos(window);
+            this.windowBuckets = buckets;
+            return this;
+        }
+
+        /**
+         * Status codes counted as failures, defaults to UNAVAILABLE and DEADLINE_EXCEEDED.
+         */
+        public Builder setFailureCodes(Status.Code... codes) {
+            Preconditions.checkArgument(codes.length > 0, "At least one failure code required");
+            this.failureCodes = EnumSet.copyOf(Arrays.asList(codes));
+            return this;
+        }
+
+        public Builder setConsecutiveFailures(int consecutiveFailures) {
+            Preconditions.checkArgument(consecutiveFailures > 0, "Consecutive failures must be positive");
+            this.consecutiveFailures = consecutiveFailures;
+            return this;
+        }
+
+        /**
+         * @param errorRateThreshold Fraction of failed calls within the window that ejects a backend
+         * @param minimumRequests Calls required within the window before the error rate is considered
+         */
+        public Builder setErrorRateThreshold(double errorRateThreshold, int minimumRequests) {
+            Preconditions.checkArgument(errorRateThreshold > 0 && errorRateThreshold <= 1, "Threshold must be in (0, 1]");
+            Preconditions.checkArgument(minimumRequests > 0, "Minimum requests must be positive");
+            this.errorRateThreshold = errorRateThreshold;
+            this.minimumRequests = minimumRequests;
+            return this;
+        }
+
+        public Builder setEjectionTime(long baseEjectionTime, long maxEjectionTime, TimeUnit unit) {
+            Preconditions.checkArgument(baseEjectionTime > 0, "Ejection time must be positive");
+            Preconditions.checkArgument(maxEjectionTime >= baseEjectionTime, "Max ejection time less than base");
+            this.baseEjectionNanos = unit.toNanos(baseEjectionTime);
+            this.maxEjectionNanos = unit.toNanos(maxEjectionTime);
+            return this;
+        }
+
+        /**
+         * Percentage of the backends that may be ejected at the same time, rounded down but at least
+         * one, zero never ejects.
+         */
+        public Builder setMaxEjectionPercent(int maxEjectionPercent) {
+            Preconditions.checkArgument(maxEjectionPercent >= 0 && maxEjectionPercent <= 100, "Percent must be in [0, 100]");
+            this.maxEjectionPercent = maxEjectionPercent;
+            return this;
+        }
+
+        /**
+         * Executor used for scheduling evaluations.
+         */
+        public Builder setExecutor(ScheduledExecutorService executor) {
+            this.executor = Preconditions.checkNotNull(executor, "executor");
+            return this;
+        }
+
+        public OutlierDetectionLoadBalancerFactory build() {
+            return new OutlierDetectionLoadBalancerFactory(this);
+        }
+    }
+}
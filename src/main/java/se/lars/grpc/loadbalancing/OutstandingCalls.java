@@ -0,0 +1,58 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls in flight on a subchannel, for balancers picking by load.  Calls are counted by the stream
+ * tracer of the pick result, both are shared by all calls so picking doesn't allocate.
+ */
+final class OutstandingCalls {
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LoadBalancer.PickResult pickResult;
+
+    /**
+     * @param total Counter of the calls in flight on all subchannels of the balancer, or null
+     */
+    OutstandingCalls(LoadBalancer.Subchannel subchannel, @Nullable AtomicInteger total) {
+        ClientStreamTracer tracer = new ClientStreamTracer() {
+            @Override
+            public void streamClosed(Status status) {
+                outstanding.decrementAndGet();
+                if (total != null) {
+                    total.decrementAndGet();
+                }
+            }
+        };
+        this.pickResult = LoadBalancer.PickResult.withSubchannel(subchannel, new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(CallOptions callOptions, Metadata headers) {
+                outstanding.incrementAndGet();
+                if (total != null) {
+                    total.incrementAndGet();
+                }
+                return tracer;
+            }
+        });
+    }
+
+    /**
+     * @return Number of calls in flight
+     */
+    int get() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return Pick result counting the calls made through it
+     */
+    LoadBalancer.PickResult getPickResult() {
+        return pickResult;
+    }
+}
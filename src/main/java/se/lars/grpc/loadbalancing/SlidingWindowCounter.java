@@ -0,0 +1,86 @@
+package se.lars.grpc.loadbalancing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter of successes and failures over a sliding time window.  The window is split into
+ * buckets that are lazily recycled when time moves past them, so recording is a couple of atomic
+ * operations without allocation.  Counts are approximate while a bucket is being recycled
+ * concurrently, which is acceptable for load balancing decisions.
+ */
+public final class SlidingWindowCounter {
+
+    private final long bucketNanos;
+    private final int buckets;
+    private final AtomicLongArray epochs;
+    private final AtomicLongArray successes;
+    private final AtomicLongArray failures;
+
+    public SlidingWindowCounter(long window, TimeUnit unit, int buckets) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("Buckets must be positive");
+        }
+        this.buckets = buckets;
+        this.bucketNanos = Math.max(1, unit.toNanos(window) / buckets);
+        this.epochs = new AtomicLongArray(buckets);
+        this.successes = new AtomicLongArray(buckets);
+        this.failures = new AtomicLongArray(buckets);
+        reset();
+    }
+
+    public void recordSuccess() {
+        successes.incrementAndGet(currentBucket(System.nanoTime()));
+    }
+
+    public void recordFailure() {
+        failures.incrementAndGet(currentBucket(System.nanoTime()));
+    }
+
+    /**
+     * @return Number of successful calls within the window
+     */
+    public long getSuccesses() {
+        return sum(successes, System.nanoTime());
+    }
+
+    /**
+     * @return Number of failed calls within the window
+     */
+    public long getFailures() {
+        return sum(failures, System.nanoTime());
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets; i++) {
+            epochs.set(i, Long.MIN_VALUE);
+            successes.set(i, 0);
+            failures.set(i, 0);
+        }
+    }
+
+    private int currentBucket(long nowNanos) {
+        long epoch = nowNanos / bucketNanos;
+        int index = (int) Math.floorMod(epoch, (long) buckets);
+        long current = epochs.get(index);
+        if (current != epoch && epochs.compareAndSet(index, current, epoch)) {
+            successes.set(index, 0);
+            failures.set(index, 0);
+        }
+        return index;
+    }
+
+    private long sum(AtomicLongArray counts, long nowNanos) {
+        long oldest = nowNanos / bucketNanos - buckets + 1;
+        long total = 0;
+        for (int i = 0; i < buckets; i++) {
+            if (epochs.get(i) >= oldest) {
+                total += counts.get(i);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,126 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver;
+
+import java.net.SocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Balancer created by {@link SlowStartLoadBalancerFactory}.
+ */
+class SlowStartLoadBalancer extends ForwardingLoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(SlowStartLoadBalancer.class);
+    private static final int MAX_PICK_ATTEMPTS = 8;
+
+    private final SlowStartLoadBalancerFactory config;
+    private final LoadBalancer delegate;
+    // Backends still ramping up, mapped to the time the ramp started.  Keyed by address alone since
+    // resolved servers carry attributes the subchannels created by the delegate don't
+    private final Map<List<SocketAddress>, Long> warming = new ConcurrentHashMap<>();
+    private final Set<List<SocketAddress>> known = new HashSet<>();
+    private boolean resolved;
+
+    SlowStartLoadBalancer(LoadBalancer.Helper helper, SlowStartLoadBalancerFactory config) {
+        this.config = config;
+        this.delegate = config.delegate.newLoadBalancer(new ForwardingHelper() {
+            @Override
+            protected LoadBalancer.Helper delegate() {
+                return helper;
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public void updatePicker(LoadBalancer.SubchannelPicker picker) {
+                super.updatePicker(new Picker(picker));
+            }
+
+            @Override
+            public void updateBalancingState(ConnectivityState newState, LoadBalancer.SubchannelPicker newPicker) {
+                super.updateBalancingState(newState, new Picker(newPicker));
+            }
+        });
+    }
+
+    @Override
+    protected LoadBalancer delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        long now = System.currentTimeMillis();
+        Set<List<SocketAddress>> current = new HashSet<>();
+        for (EquivalentAddressGroup server : servers) {
+            current.add(server.getAddresses());
+        }
+        known.retainAll(current);
+        warming.keySet().retainAll(current);
+        for (EquivalentAddressGroup server : servers) {
+            if (!known.add(server.getAddresses())) {
+                continue;
+            }
+            Long registeredAt = server.getAttributes().get(ZookeeperZoneAwareNameResolver.REGISTERED_AT_KEY);
+            long rampStart;
+            if (registeredAt != null && registeredAt > 0) {
+                // Clock skew against Zookeeper must not push the ramp into the future
+                rampStart = Math.min(registeredAt, now);
+            } else {
+                rampStart = resolved ? now : 0;
+            }
+            if (now - rampStart < config.windowMillis) {
+                log.info("Ramping up traffic to {} over {} ms", server.getAddresses(), config.windowMillis - (now - rampStart));
+                warming.put(server.getAddresses(), rampStart);
+            }
+        }
+        resolved = true;
+        super.handleResolvedAddressGroups(servers, attributes);
+    }
+
+    private double weight(List<SocketAddress> server) {
+        Long rampStart = warming.get(server);
+        if (rampStart == null) {
+            return 1;
+        }
+        double weight = config.weight(System.currentTimeMillis() - rampStart);
+        if (weight >= 1) {
+            warming.remove(server, rampStart);
+        }
+        return weight;
+    }
+
+    private final class Picker extends LoadBalancer.SubchannelPicker {
+        private final LoadBalancer.SubchannelPicker delegate;
+
+        Picker(LoadBalancer.SubchannelPicker delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+            LoadBalancer.PickResult result = delegate.pickSubchannel(args);
+            if (warming.isEmpty()) {
+                return result;
+            }
+            for (int attempt = 1; attempt < MAX_PICK_ATTEMPTS && result.getSubchannel() != null; attempt++) {
+                double weight = weight(result.getSubchannel().getAddresses().getAddresses());
+                if (weight >= 1 || ThreadLocalRandom.current().nextDouble() < weight) {
+                    break;
+                }
+                result = delegate.pickSubchannel(args);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package se.lars.grpc.loadbalancing;
+
+import com.google.common.base.Preconditions;
+import io.grpc.LoadBalancer;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancer factory that ramps up the share of traffic sent to newly registered backends,
+ * giving them time to warm up caches and JIT before taking a full share.
+ * <p>
+ * The ramp starts when the backend registered, taken from the
+ * {@link se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver#REGISTERED_AT_KEY} attribute, and
+ * lasts for the configured window.  Backends without a registration time are ramped from when they
+ * were first resolved, unless part of the first resolution.
+ * <p>
+ * The delegate's picks of a warming backend are accepted with a probability equal to its current
+ * weight and otherwise re-picked, so the delegate must spread picks over its backends, e.g. round
+ * robin.
+ */
+public class SlowStartLoadBalancerFactory extends LoadBalancer.Factory {
+
+    public enum Ramp {
+        /**
+         * Weight grows linearly from the minimum weight to full weight.
+         */
+        LINEAR,
+        /**
+         * Weight doubles at a steady rate from the minimum weight to full weight, keeping the first
+         * part of the window gentle.
+         */
+        EXPONENTIAL
+    }
+
+    final LoadBalancer.Factory delegate;
+    final long windowMillis;
+    final Ramp ramp;
+    final double minWeight;
+
+    private SlowStartLoadBalancerFactory(Builder builder) {
+        this.delegate = builder.delegate;
+        this.windowMillis = builder.windowMillis;
+        this.ramp = builder.ramp;
+        this.minWeight = builder.minWeight;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new SlowStartLoadBalancer(helper, this);
+    }
+
+    /**
+     * @param elapsedMillis Time since the backend registered
+     * @return The share of a full weight the backend should receive, in (0, 1]
+     */
+    double weight(long elapsedMillis) {
+        if (elapsedMillis >= windowMillis) {
+            return 1;
+        }
+        double progress = Math.max(0, (double) elapsedMillis / windowMillis);
+        switch (ramp) {
+            case EXPONENTIAL:
+                return minWeight * Math.pow(1 / minWeight, progress);
+            case LINEAR:
+            default:
+                return minWeight + (1 - minWeight) * progress;
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private LoadBalancer.Factory delegate = RoundRobinLoadBalancerFactory.getInstance();
+        private long windowMillis = TimeUnit.SECONDS.toMillis(60);
+        private Ramp ramp = Ramp.LINEAR;
+        private double minWeight = 0.1;
+
+        /**
+         * Balancer picking among all backends, defaults to round robin.
+         */
+        public Builder setDelegate(LoadBalancer.Factory delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate, "delegate");
+            return this;
+        }
+
+        public Builder setWindow(long window, TimeUnit unit) {
+            Preconditions.checkArgument(window > 0, "Window must be positive");
+            this.windowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        public Builder setRamp(Ramp ramp) {
+            this.ramp = Preconditions.checkNotNull(ramp, "ramp");
+            return this;
+        }
+
+        /**
+         * Weight of a backend that just registered.
+         */
+        public Builder setMinWeight(double minWeight) {
+            Preconditions.checkArgument(minWeight > 0 && minWeight <= 1, "Weight must be in (0, 1]");
+            this.minWeight = minWeight;
+            return this;
+        }
+
+        public SlowStartLoadBalancerFactory build() {
+            return new SlowStartLoadBalancerFactory(this);
+        }
+    }
+}
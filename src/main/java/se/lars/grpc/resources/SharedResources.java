@@ -0,0 +1,246 @@
+package se.lars.grpc.resources;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads shared by all channels, name resolvers and schedulers of a process, so the number of
+ * threads stays the same however many channels are created.
+ * <p>
+ * The bundle holds one Netty event loop group, using epoll when the native transport is on the class
+ * path and usable and NIO otherwise, one executor for application callbacks and other work offloaded
+ * from the event loops, and one scheduled executor for timers.  Each is created on first use.  The
+ * scheduled executor of {@link #getDefault()} is the default executor of
+ * {@link se.lars.grpc.retry.Retryer} and of the load balancer factories, so the default instance can't
+ * be closed.  Its threads are daemon threads and don't keep the process alive.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * SharedResources resources = SharedResources.getDefault();
+ * ManagedChannel channel = resources.newChannelBuilder("zk://foo")
+ *                                   .nameResolverFactory(ZookeeperZoneAwareNameResolverProvider.newBuilder()
+ *                                                                                              .setZookeeperAddress(zookeeper)
+ *                                                                                              .setSharedResources(resources)
+ *                                                                                              .build())
+ *                                   .usePlaintext(true)
+ *                                   .build();
+ * }
+ * </pre>
+ */
+public final class SharedResources implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedResources.class);
+    private static final String EPOLL = "io.netty.channel.epoll.Epoll";
+    private static final String EPOLL_EVENT_LOOP_GROUP = "io.netty.channel.epoll.EpollEventLoopGroup";
+    private static final String EPOLL_SOCKET_CHANNEL = "io.netty.channel.epoll.EpollSocketChannel";
+
+    private static SharedResources defaultInstance;
+
+    private final int eventLoopThreads;
+    private final int executorThreads;
+    private final int schedulerThreads;
+    private final boolean useEpoll;
+    private final boolean closeable;
+
+    private EventLoopGroup eventLoopGroup;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduledExecutor;
+
+    private SharedResources(Builder builder, boolean closeable) {
+        this.closeable = closeable;
+        this.eventLoopThreads = builder.eventLoopThreads;
+        this.executorThreads = builder.executorThreads;
+        this.schedulerThreads = builder.schedulerThreads;
+        this.useEpoll = builder.preferEpoll && isEpollAvailable();
+    }
+
+    /**
+     * @return The process wide instance with default sizes
+     */
+    public static synchronized SharedResources getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new SharedResources(newBuilder(), false);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return A channel builder using the shared event loop group and executor
+     */
+    public NettyChannelBuilder newChannelBuilder(String target) {
+        return configure(NettyChannelBuilder.forTarget(target));
+    }
+
+    /**
+     * Make the channel use the shared event loop group and executor.
+     */
+    public NettyChannelBuilder configure(NettyChannelBuilder builder) {
+        return builder.eventLoopGroup(getEventLoopGroup())
+                      .channelType(getChannelType())
+                      .executor(getExecutor());
+    }
+
+    public synchronized EventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null) {
+            ThreadFactory threadFactory = new DefaultThreadFactory("grpc-shared-elg", true);
+            eventLoopGroup = useEpoll ? newEpollEventLoopGroup(threadFactory) : new NioEventLoopGroup(eventLoopThreads, threadFactory);
+            log.info("Created shared {} event loop group with {} threads", useEpoll ? "epoll" : "nio", eventLoopThreads);
+        }
+        return eventLoopGroup;
+    }
+
+    /**
+     * @return Socket channel type matching {@link #getEventLoopGroup()}
+     */
+    public Class<? extends Channel> getChannelType() {
+        if (useEpoll) {
+            try {
+                return Class.forName(EPOLL_SOCKET_CHANNEL).asSubclass(Channel.class);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Epoll transport disappeared from the class path", e);
+            }
+        }
+        return NioSocketChannel.class;
+    }
+
+    /**
+     * @return Executor for callbacks and other work that must not run on an event loop
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(executorThreads, newThreadFactory("grpc-shared-executor-%s"));
+        }
+        return executor;
+    }
+
+    /**
+     * @return Executor for timers such as retry backoff and load balancer evaluations, tasks must be short
+     */
+    public synchronized ScheduledExecutorService getScheduledExecutor() {
+        if (scheduledExecutor == null) {
+            scheduledExecutor = Executors.newScheduledThreadPool(schedulerThreads, newThreadFactory("grpc-shared-scheduler-%s"));
+        }
+        return scheduledExecutor;
+    }
+
+    /**
+     * @return Factory for daemon threads named by {@code nameFormat}, for libraries that insist on
+     *  creating their own threads
+     */
+    public ThreadFactory newThreadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat)
+                                         .setDaemon(true)
+                                         .build();
+    }
+
+    /**
+     * @return True if the event loop group uses the native epoll transport
+     */
+    public boolean isEpoll() {
+        return useEpoll;
+    }
+
+    /**
+     * Shut down the threads created so far, channels using them must be shut down first.
+     *
+     * @throws IllegalStateException If this is the default instance, which is shared by everything in the process
+     */
+    @Override
+    public synchronized void close() {
+        Preconditions.checkState(closeable, "The default shared resources can't be closed");
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdown();
+        }
+    }
+
+    private EventLoopGroup newEpollEventLoopGroup(ThreadFactory threadFactory) {
+        try {
+            return (EventLoopGroup) Class.forName(EPOLL_EVENT_LOOP_GROUP)
+                                         .getConstructor(int.class, ThreadFactory.class)
+                                         .newInstance(eventLoopThreads, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create epoll event loop group", e);
+        }
+    }
+
+    private static boolean isEpollAvailable() {
+        // The native transport is an optional dependency, only look for it by name
+        try {
+            return (Boolean) Class.forName(EPOLL).getMethod("isAvailable").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return false;
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        private int executorThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private int schedulerThreads = 1;
+        private boolean preferEpoll = true;
+
+        /**
+         * Event loop threads serving the connections of all channels, defaults to the number of cores.
+         */
+        public Builder setEventLoopThreads(int eventLoopThreads) {
+            Preconditions.checkArgument(eventLoopThreads > 0, "Threads must be positive");
+            this.eventLoopThreads = eventLoopThreads;
+            return this;
+        }
+
+        /**
+         * Threads running callbacks, defaults to the number of cores but at least two.
+         */
+        public Builder setExecutorThreads(int executorThreads) {
+            Preconditions.checkArgument(executorThreads > 0, "Threads must be positive");
+            this.executorThreads = executorThreads;
+            return this;
+        }
+
+        /**
+         * Threads running scheduled tasks, defaults to one.
+         */
+        public Builder setSchedulerThreads(int schedulerThreads) {
+            Preconditions.checkArgument(schedulerThreads > 0, "Threads must be positive");
+            this.schedulerThreads = schedulerThreads;
+            return this;
+        }
+
+        /**
+         * Whether to use the native epoll transport when available, defaults to true.
+         */
+        public Builder setPreferEpoll(boolean preferEpoll) {
+            this.preferEpoll = preferEpoll;
+            return this;
+        }
+
+        public SharedResources build() {
+            return new SharedResources(this, true);
+        }
+    }
+}
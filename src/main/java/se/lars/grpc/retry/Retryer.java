@@ -1,12 +1,11 @@
 package se.lars.grpc.retry;
 
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import se.lars.grpc.resources.SharedResources;
 
 /**
  * Generic Retryer that encapsulates the retry mechanism for retrying operations asynchronously.
@@ -14,11 +13,6 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * a new Retryer that must be used for the next retry attempt.
  */
 public final class Retryer {
-    private static final ScheduledExecutorService SHARED_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
-            .setNameFormat("retryer-%s")
-            .setDaemon(true)
-            .build());
-
     private final Backoff backoffPolicy;
     private final int maxRetrys;
     private final ScheduledExecutorService executor;
@@ -31,7 +25,7 @@ public final class Retryer {
             @Override
             public void run() {
             }
-        }, SHARED_EXECUTOR);
+        }, SharedResources.getDefault().getScheduledExecutor());
     }
 
     private Retryer(Backoff backoffPolicy, int maxRetrys, Runnable beforeRetry, ScheduledExecutorService executor) {
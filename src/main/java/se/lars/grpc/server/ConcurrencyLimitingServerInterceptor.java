@@ -0,0 +1,293 @@
+package se.lars.grpc.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Interceptor limiting the number of concurrent calls a server accepts, adapting the limit to the
+ * observed latency of unary calls, including those cancelled or exceeding their deadline.  Calls
+ * over the limit are rejected immediately with UNAVAILABLE so that clients, e.g. through
+ * {@link se.lars.grpc.retry.RetryClientInterceptor}, fail over to another backend instead of
+ * queueing here.
+ * <p>
+ * The limit follows a gradient: once per window the average latency is compared with a long term
+ * baseline.  While latency stays within {@code tolerance} of the baseline the limit grows by a queue
+ * allowance of the square root of the limit, when latency rises the limit shrinks in proportion.
+ * The baseline only follows latency within tolerance, so sustained overload keeps the limit down
+ * instead of becoming the new normal, unless latency stays high at the minimum limit.  The limit only
+ * grows while the current limit is actually being used.  All bookkeeping is done with atomic
+ * counters.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * ConcurrencyLimitingServerInterceptor limiter = ConcurrencyLimitingServerInterceptor.newBuilder().build();
+ * ServerBuilder.forPort(port)
+ *              .addService(ServerInterceptors.intercept(new FooImpl(), limiter))
+ * }
+ * </pre>
+ */
+public class ConcurrencyLimitingServerInterceptor implements ServerInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimitingServerInterceptor.class);
+    private static final double BASELINE_DECAY = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final long windowNanos;
+    private final int minSamples;
+    private final IntConsumer limitListener;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile int limit;
+    private volatile double estimatedLimit;
+    private volatile double baselineRttNanos;
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowRttSum = new AtomicLong();
+    private final AtomicInteger windowSamples = new AtomicInteger();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+
+    private ConcurrencyLimitingServerInterceptor(Builder builder) {
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.tolerance = builder.tolerance;
+        this.smoothing = builder.smoothing;
+        this.windowNanos = builder.windowNanos;
+        this.minSamples = builder.minSamples;
+        this.limitListener = builder.limitListener;
+        this.limit = builder.initialLimit;
+        this.estimatedLimit = builder.initialLimit;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        int current = inFlight.incrementAndGet();
+        if (current > limit) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            call.close(Status.UNAVAILABLE.withDescription("Concurrency limit of " + limit + " exceeded"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        windowMaxInFlight.accumulateAndGet(current, Math::max);
+
+        boolean sampled = call.getMethodDescriptor().getType() == MethodDescriptor.MethodType.UNARY;
+        long start = System.nanoTime();
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            private boolean done = false;
+
+            @Override
+            public void onComplete() {
+                if (finish() && sampled) {
+                    onSample(System.nanoTime() - start);
+                }
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                // Calls cancelled or past their deadline are the slow ones, leaving them out would
+                // hide overload from the latency estimate
+                if (finish() && sampled) {
+                    onSample(System.nanoTime() - start);
+                }
+                super.onCancel();
+            }
+
+            private boolean finish() {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                inFlight.decrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    private void onSample(long rttNanos) {
+        windowRttSum.addAndGet(rttNanos);
+        windowSamples.incrementAndGet();
+
+        long now = System.nanoTime();
+        long started = windowStart.get();
+        if (now - started < windowNanos || windowSamples.get() < minSamples) {
+            return;
+        }
+        // Only the thread that moves the window updates the limit
+        if (!windowStart.compareAndSet(started, now)) {
+            return;
+        }
+        int samples = windowSamples.getAndSet(0);
+        long rttSum = windowRttSum.getAndSet(0);
+        int maxInFlight = windowMaxInFlight.getAndSet(0);
+        if (samples == 0) {
+            return;
+        }
+        updateLimit((double) rttSum / samples, maxInFlight);
+    }
+
+    @VisibleForTesting
+    void updateLimit(double shortRtt, int maxInFlight) {
+        double baseline = baselineRttNanos;
+        if (baseline == 0) {
+            baseline = shortRtt;
+        } else if (shortRtt < baseline) {
+            // Quickly follow improvements so the baseline reflects an unloaded server
+            baseline = shortRtt;
+        } else if (shortRtt <= tolerance * baseline || estimatedLimit <= minLimit) {
+            // Latency still elevated at the minimum limit is not caused by load here
+            baseline = baseline * (1 - BASELINE_DECAY) + shortRtt * BASELINE_DECAY;
+        }
+        // Frozen while overloaded, following the latency would hide the overload from the gradient
+        baselineRttNanos = baseline;
+
+        double current = estimatedLimit;
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * baseline / shortRtt));
+        double target = current * gradient;
+        if (gradient == 1.0 && maxInFlight >= current / 2) {
+            target += Math.sqrt(current);
+        }
+        double next = current * (1 - smoothing) + target * smoothing;
+        next = Math.max(minLimit, Math.min(maxLimit, next));
+        estimatedLimit = next;
+
+        int newLimit = (int) next;
+        if (newLimit != limit) {
+            log.debug("Concurrency limit {} -> {}, rtt {} us, baseline {} us",
+                      limit, newLimit, (long) shortRtt / 1_000, (long) baseline / 1_000);
+            limit = newLimit;
+            if (limitListener != null) {
+                limitListener.accept(newLimit);
+            }
+        }
+    }
+
+    /**
+     * @return The current concurrency limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return Number of calls currently being served
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Number of calls rejected since the server started
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The baseline latency of an unloaded server in nanoseconds, 0 before the first window
+     */
+    public long getBaselineRttNanos() {
+        return (long) baselineRttNanos;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int initialLimit = 20;
+        private int minLimit = 4;
+        private int maxLimit = 1000;
+        private double tolerance = 1.5;
+        private double smoothing = 0.2;
+        private long windowNanos = TimeUnit.SECONDS.toNanos(1);
+        private int minSamples = 10;
+        private IntConsumer limitListener;
+
+        public Builder setInitialLimit(int initialLimit) {
+            Preconditions.checkArgument(initialLimit > 0, "Limit must be positive");
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder setLimitRange(int minLimit, int maxLimit) {
+            Preconditions.checkArgument(minLimit > 0 && maxLimit >= minLimit, "Invalid limit range");
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Factor the latency may grow over the baseline before the limit is reduced.
+         */
+        public Builder setTolerance(double tolerance) {
+            Preconditions.checkArgument(tolerance >= 1, "Tolerance must be at least 1");
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Weight of each new estimate when updating the limit, in (0, 1].
+         */
+        public Builder setSmoothing(double smoothing) {
+            Preconditions.checkArgument(smoothing > 0 && smoothing <= 1, "Smoothing must be in (0, 1]");
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * @param window Minimum time between limit updates
+         * @param minSamples Minimum completed calls between limit updates
+         */
+        public Builder setWindow(long window, TimeUnit unit, int minSamples) {
+            Preconditions.checkArgument(window > 0, "Window must be positive");
+            Preconditions.checkArgument(minSamples > 0, "Samples must be positive");
+            this.windowNanos = unit.toNanos(window);
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Notified with the new limit whenever it changes, e.g. to publish it along with the
+         * registration.  Invoked on the thread completing a call, must not block.
+         */
+        public Builder setLimitListener(IntConsumer limitListener) {
+            this.limitListener = limitListener;
+            return this;
+        }
+
+        public ConcurrencyLimitingServerInterceptor build() {
+            Preconditions.checkState(initialLimit >= minLimit && initialLimit <= maxLimit,
+                                     "Initial limit outside limit range");
+            return new ConcurrencyLimitingServerInterceptor(this);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package se.lars.grpc.server;
+
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interceptor keeping track of the calls currently being served, used to tell when a server has
+ * drained after being deregistered.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * InFlightCallsInterceptor inFlightCalls = new InFlightCallsInterceptor();
+ * ServerBuilder.forPort(port)
+ *              .addService(ServerInterceptors.intercept(new FooImpl(), inFlightCalls))
+ * }
+ * </pre>
+ */
+public class InFlightCallsInterceptor implements ServerInterceptor {
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long lastCallStartedNanos = System.nanoTime();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        inFlight.incrementAndGet();
+        lastCallStartedNanos = System.nanoTime();
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            private boolean done = false;
+
+            @Override
+            public void onComplete() {
+                finish();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                finish();
+                super.onCancel();
+            }
+
+            private void finish() {
+                if (!done) {
+                    done = true;
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Number of calls started but not yet completed or cancelled
+     */
+    public int getInFlightCalls() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the last call was started
+     */
+    public long getLastCallStartedNanos() {
+        return lastCallStartedNanos;
+    }
+}
@@ -0,0 +1,232 @@
+package se.lars.grpc.server;
+
+import com.google.common.base.Preconditions;
+import io.grpc.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.lars.grpc.discovery.ServiceDiscovery;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ties the lifecycle of a gRPC {@link Server} to its registration in {@link ServiceDiscovery} so
+ * that deploys don't fail calls.
+ * <p>
+ * On {@link #shutdown()} the server is first deregistered while it keeps serving.  It then waits for
+ * the propagation window so clients see the deregistration, idle clients may not have picked it up
+ * any sooner.  While calls still arrive the wait is extended until none arrived for the quiet period,
+ * by at most another propagation window, before the server stops accepting calls and is given until
+ * the termination timeout to finish the remaining ones.
+ * <p>
+ * Usage
+ * <pre>
+ * {code
+ * InFlightCallsInterceptor inFlightCalls = new InFlightCallsInterceptor();
+ * Server server = ServerBuilder.forPort(port)
+ *                              .addService(ServerInterceptors.intercept(new FooImpl(), inFlightCalls))
+ *                              .build();
+ * ServerLifecycle lifecycle = ServerLifecycle.newBuilder()
+ *                                            .setServer(server)
+ *                                            .setServiceDiscovery(serviceDiscovery)
+ *                                            .setServiceId("demo")
+ *                                            .setEndpointURI(URI.create("dns://localhost:" + port))
+ *                                            .setInFlightCalls(inFlightCalls)
+ *                                            .build();
+ * lifecycle.start();
+ * ...
+ * lifecycle.shutdown();
+ * }
+ * </pre>
+ */
+public class ServerLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerLifecycle.class);
+    private static final long POLL_MILLIS = 50;
+
+    private final Server server;
+    private final ServiceDiscovery serviceDiscovery;
+    private final String serviceId;
+    private final URI endpointURI;
+    private final String zone;
+    private final InFlightCallsInterceptor inFlightCalls;
+    private final long propagationNanos;
+    private final long quietPeriodNanos;
+    private final long terminationTimeoutNanos;
+
+    private ServerLifecycle(Builder builder) {
+        this.server = builder.server;
+        this.serviceDiscovery = builder.serviceDiscovery;
+        this.serviceId = builder.serviceId;
+        this.endpointURI = builder.endpointURI;
+        this.zone = builder.zone;
+        this.inFlightCalls = builder.inFlightCalls;
+        this.propagationNanos = builder.propagationNanos;
+        this.quietPeriodNanos = builder.quietPeriodNanos;
+        this.terminationTimeoutNanos = builder.terminationTimeoutNanos;
+    }
+
+    /**
+     * Start the server and register it once it is accepting calls.
+     */
+    public void start() throws Exception {
+        server.start();
+        if (zone != null) {
+            serviceDiscovery.registerService(serviceId, endpointURI, zone);
+        } else {
+            serviceDiscovery.registerService(serviceId, endpointURI);
+        }
+        log.info("Started and registered {} as {}", endpointURI, serviceId);
+    }
+
+    /**
+     * Deregister, drain and stop the server.  The server is stopped even if deregistration fails.
+     *
+     * @return Time in milliseconds from deregistration until the server terminated
+     */
+    public long shutdown() throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (zone != null) {
+                serviceDiscovery.deregister(serviceId, endpointURI, zone);
+            } else {
+                serviceDiscovery.deregister(serviceId, endpointURI);
+            }
+        } catch (Exception e) {
+            // The registration goes with the session at the latest, still drain what can be drained
+            log.error("Failed to deregister {} as {}, stopping it anyway", endpointURI, serviceId, e);
+        }
+
+        long propagated = start;
+        boolean terminated = false;
+        int abandoned = 0;
+        try {
+            awaitPropagation(start);
+            propagated = System.nanoTime();
+
+            server.shutdown();
+            terminated = server.awaitTermination(terminationTimeoutNanos, TimeUnit.NANOSECONDS);
+            abandoned = inFlightCalls != null ? inFlightCalls.getInFlightCalls() : 0;
+        } finally {
+            if (!terminated) {
+                server.shutdownNow();
+            }
+        }
+
+        long end = System.nanoTime();
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(end - start);
+        if (terminated) {
+            log.info("Drained {} in {} ms ({} ms waiting for propagation)",
+                     endpointURI, drainMillis, TimeUnit.NANOSECONDS.toMillis(propagated - start));
+        } else {
+            log.warn("Server {} did not terminate within {} ms, cancelled {} in flight calls",
+                     endpointURI, TimeUnit.NANOSECONDS.toMillis(terminationTimeoutNanos), abandoned);
+        }
+        return drainMillis;
+    }
+
+    private void awaitPropagation(long start) throws InterruptedException {
+        long deadline = start + propagationNanos;
+        long maxDeadline = deadline + propagationNanos;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                if (inFlightCalls == null || now - maxDeadline >= 0) {
+                    return;
+                }
+                // Calls in flight are left to the termination timeout, only arriving calls mean clients still pick this server
+                long quietSince = Math.max(start, inFlightCalls.getLastCallStartedNanos());
+                if (now - quietSince >= quietPeriodNanos) {
+                    return;
+                }
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Server server;
+        private ServiceDiscovery serviceDiscovery;
+        private String serviceId;
+        private URI endpointURI;
+        private String zone;
+        private InFlightCallsInterceptor inFlightCalls;
+        private long propagationNanos = TimeUnit.SECONDS.toNanos(5);
+        private long quietPeriodNanos = TimeUnit.SECONDS.toNanos(1);
+        private long terminationTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+        public Builder setServer(Server server) {
+            this.server = server;
+            return this;
+        }
+
+        public Builder setServiceDiscovery(ServiceDiscovery serviceDiscovery) {
+            this.serviceDiscovery = serviceDiscovery;
+            return this;
+        }
+
+        public Builder setServiceId(String serviceId) {
+            this.serviceId = serviceId;
+            return this;
+        }
+
+        public Builder setEndpointURI(URI endpointURI) {
+            this.endpointURI = endpointURI;
+            return this;
+        }
+
+        public Builder setZone(String zone) {
+            this.zone = zone;
+            return this;
+        }
+
+        /**
+         * Interceptor installed on the server's services.  Without it the wait is never extended
+         * beyond the propagation window.
+         */
+        public Builder setInFlightCalls(InFlightCallsInterceptor inFlightCalls) {
+            this.inFlightCalls = inFlightCalls;
+            return this;
+        }
+
+        /**
+         * Time to keep serving after deregistering, for clients to see the deregistration.
+         */
+        public Builder setPropagationWindow(long window, TimeUnit unit) {
+            Preconditions.checkArgument(window >= 0, "Window must not be negative");
+            this.propagationNanos = unit.toNanos(window);
+            return this;
+        }
+
+        /**
+         * Time without new calls after which the server is considered drained once the propagation
+         * window has passed.
+         */
+        public Builder setQuietPeriod(long period, TimeUnit unit) {
+            Preconditions.checkArgument(period >= 0, "Period must not be negative");
+            this.quietPeriodNanos = unit.toNanos(period);
+            return this;
+        }
+
+        /**
+         * Time given to calls still in flight once the server stops accepting calls.
+         */
+        public Builder setTerminationTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative");
+            this.terminationTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public ServerLifecycle build() {
+            Preconditions.checkState(server != null, "Server must be set");
+            Preconditions.checkState(serviceDiscovery != null, "ServiceDiscovery must be set");
+            Preconditions.checkState(serviceId != null, "Service id must be set");
+            Preconditions.checkState(endpointURI != null, "Endpoint URI must be set");
+            return new ServerLifecycle(this);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package se.lars.grpc.caching;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingClientInterceptorTest {
+
+    private static final Health.Ping PING = Health.Ping.newBuilder().build();
+
+    private final BlockingQueue<StreamObserver<Health.Pong>> pending = new LinkedBlockingQueue<>();
+    private String name;
+    private Server server;
+    private ManagedChannel channel;
+    private CachingClientInterceptor cache;
+
+    @Before
+    public void setUp() throws Exception {
+        name = "caching-test-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name)
+                                       .addService(new PingPongGrpc.PingPongImplBase() {
+                                           @Override
+                                           public void pingit(Health.Ping request, StreamObserver<Health.Pong> responseObserver) {
+                                               pending.add(responseObserver);
+                                           }
+                                       })
+                                       .build()
+                                       .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        cache = CachingClientInterceptor.newBuilder()
+                                        .addMethod(PingPongGrpc.METHOD_PINGIT)
+                                        .setTimeToLive(200, TimeUnit.MILLISECONDS)
+                                        .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cachedResponseIsServedWithoutCall() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        respond("one");
+        assertEquals("one", first.get(5, TimeUnit.SECONDS).getMsg());
+
+        assertEquals("one", stub().pingit(PING).get(5, TimeUnit.SECONDS).getMsg());
+        assertNull(pending.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void expiredResponseIsFetchedAgain() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        respond("one");
+        first.get(5, TimeUnit.SECONDS);
+        Thread.sleep(300);
+
+        ListenableFuture<Health.Pong> second = stub().pingit(PING);
+        respond("two");
+        assertEquals("two", second.get(5, TimeUnit.SECONDS).getMsg());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void concurrentCallsAreCollapsed() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        StreamObserver<Health.Pong> call = awaitPending();
+        ListenableFuture<Health.Pong> second = stub().pingit(PING);
+        assertNull(pending.poll(100, TimeUnit.MILLISECONDS));
+
+        respond(call, "one");
+        assertEquals("one", first.get(5, TimeUnit.SECONDS).getMsg());
+        assertEquals("one", second.get(5, TimeUnit.SECONDS).getMsg());
+        assertEquals(1, cache.getCollapsedCount());
+    }
+
+    @Test
+    public void failureIsSharedButNotCached() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        StreamObserver<Health.Pong> call = awaitPending();
+        ListenableFuture<Health.Pong> second = stub().pingit(PING);
+        call.onError(Status.UNAVAILABLE.asRuntimeException());
+
+        assertEquals(Status.Code.UNAVAILABLE, statusOf(first));
+        assertEquals(Status.Code.UNAVAILABLE, statusOf(second));
+        ListenableFuture<Health.Pong> third = stub().pingit(PING);
+        respond("three");
+        assertEquals("three", third.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void cancelledLeaderLeavesFollowerWaiting() throws Exception {
+        ListenableFuture<Health.Pong> leader = stub().pingit(PING);
+        ServerCallStreamObserver<Health.Pong> call = (ServerCallStreamObserver<Health.Pong>) awaitPending();
+        ListenableFuture<Health.Pong> follower = stub().pingit(PING);
+
+        leader.cancel(true);
+        Thread.sleep(100);
+        assertFalse(call.isCancelled());
+        assertFalse(follower.isDone());
+
+        respond(call, "one");
+        assertEquals("one", follower.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void leaderDeadlineDoesNotApplyToFollower() throws Exception {
+        ListenableFuture<Health.Pong> leader = stub().withDeadlineAfter(100, TimeUnit.MILLISECONDS).pingit(PING);
+        StreamObserver<Health.Pong> call = awaitPending();
+        ListenableFuture<Health.Pong> follower = stub().pingit(PING);
+
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, statusOf(leader));
+        assertFalse(follower.isDone());
+        respond(call, "one");
+        assertEquals("one", follower.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void followerFailsWithItsOwnDeadline() throws Exception {
+        ListenableFuture<Health.Pong> leader = stub().pingit(PING);
+        StreamObserver<Health.Pong> call = awaitPending();
+        ListenableFuture<Health.Pong> follower = stub().withDeadlineAfter(100, TimeUnit.MILLISECONDS).pingit(PING);
+
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, statusOf(follower));
+        assertFalse(leader.isDone());
+        respond(call, "one");
+        assertEquals("one", leader.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void sharedCallIsCancelledWhenAllCallersGiveUp() throws Exception {
+        ListenableFuture<Health.Pong> leader = stub().pingit(PING);
+        ServerCallStreamObserver<Health.Pong> call = (ServerCallStreamObserver<Health.Pong>) awaitPending();
+        ListenableFuture<Health.Pong> follower = stub().pingit(PING);
+
+        leader.cancel(true);
+        follower.cancel(true);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!call.isCancelled() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(call.isCancelled());
+
+        ListenableFuture<Health.Pong> next = stub().pingit(PING);
+        respond("two");
+        assertEquals("two", next.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void deadlineExceededIsNotShared() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        StreamObserver<Health.Pong> call = awaitPending();
+        ListenableFuture<Health.Pong> second = stub().pingit(PING);
+        call.onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+
+        // Each caller sends its request on a call of its own
+        respond("own");
+        respond("own");
+        assertEquals("own", first.get(5, TimeUnit.SECONDS).getMsg());
+        assertEquals("own", second.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void failureToStartCallIsNotLeft() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        Channel failing = new Channel() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+                if (fail.getAndSet(false)) {
+                    throw new IllegalStateException("Broken channel");
+                }
+                return channel.newCall(method, callOptions);
+            }
+
+            @Override
+            public String authority() {
+                return channel.authority();
+            }
+        };
+        PingPongGrpc.PingPongFutureStub stub = PingPongGrpc.newFutureStub(ClientInterceptors.intercept(failing, cache));
+
+        try {
+            stub.pingit(PING);
+            fail("Expected failure");
+        } catch (IllegalStateException e) {
+            assertEquals("Broken channel", e.getMessage());
+        }
+        ListenableFuture<Health.Pong> next = stub.pingit(PING);
+        respond("two");
+        assertEquals("two", next.get(5, TimeUnit.SECONDS).getMsg());
+    }
+
+    @Test
+    public void responsesAreNotSharedAcrossAuthorities() throws Exception {
+        ListenableFuture<Health.Pong> first = stub().pingit(PING);
+        respond("one");
+        first.get(5, TimeUnit.SECONDS);
+
+        ManagedChannel other = InProcessChannelBuilder.forName(name).overrideAuthority("other.example.com").build();
+        try {
+            ListenableFuture<Health.Pong> second = PingPongGrpc.newFutureStub(other).withInterceptors(cache).pingit(PING);
+            respond("two");
+            assertEquals("two", second.get(5, TimeUnit.SECONDS).getMsg());
+            assertEquals(0, cache.getHitCount());
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharedResponsesAreDeliveredOnExecutor() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "cache-executor"));
+        try {
+            cache = CachingClientInterceptor.newBuilder()
+                                            .addMethod(PingPongGrpc.METHOD_PINGIT)
+                                            .setExecutor(executor)
+                                            .build();
+            BlockingQueue<String> closedOn = new LinkedBlockingQueue<>();
+            ListenableFuture<Health.Pong> first = stub().pingit(PING);
+            StreamObserver<Health.Pong> call = awaitPending();
+            startCall(closedOn);
+            respond(call, "one");
+            first.get(5, TimeUnit.SECONDS);
+            assertEquals("cache-executor", closedOn.poll(5, TimeUnit.SECONDS));
+
+            startCall(closedOn);
+            assertEquals("cache-executor", closedOn.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, cache.getHitCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start a call without an executor in its options, recording the thread its listener is closed on.
+     */
+    private void startCall(BlockingQueue<String> closedOn) {
+        ClientCall<Health.Ping, Health.Pong> call = ClientInterceptors.intercept(channel, cache)
+                                                                      .newCall(PingPongGrpc.METHOD_PINGIT, CallOptions.DEFAULT);
+        call.start(new ClientCall.Listener<Health.Pong>() {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                closedOn.add(Thread.currentThread().getName());
+            }
+        }, new Metadata());
+        call.request(1);
+        call.sendMessage(PING);
+        call.halfClose();
+    }
+
+    private PingPongGrpc.PingPongFutureStub stub() {
+        return PingPongGrpc.newFutureStub(channel).withInterceptors(cache);
+    }
+
+    private StreamObserver<Health.Pong> awaitPending() throws InterruptedException {
+        StreamObserver<Health.Pong> call = pending.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No call reached the server", call);
+        return call;
+    }
+
+    private void respond(String msg) throws InterruptedException {
+        respond(awaitPending(), msg);
+    }
+
+    private static void respond(StreamObserver<Health.Pong> call, String msg) {
+        call.onNext(Health.Pong.newBuilder().setMsg(msg).build());
+        call.onCompleted();
+    }
+
+    private static Status.Code statusOf(ListenableFuture<?> future) throws InterruptedException, TimeoutException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected failure");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StatusRuntimeException);
+            return Status.fromThrowable(e.getCause()).getCode();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package se.lars.grpc.discovery;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RendezvousSubsetterTest {
+
+    private static final int HOSTS = 50;
+    private static final int SUBSET = 10;
+    private static final int CLIENTS = 500;
+
+    @Test
+    public void subsetIsStableForClient() {
+        List<ServiceDiscovery.HostandZone> hosts = hosts(HOSTS, "a");
+        RendezvousSubsetter subsetter = new RendezvousSubsetter("client-1", SUBSET, null);
+        Set<ServiceDiscovery.HostandZone> subset = new HashSet<>(subsetter.select(hosts));
+        assertEquals(SUBSET, subset.size());
+
+        List<ServiceDiscovery.HostandZone> shuffled = new ArrayList<>(hosts);
+        Collections.shuffle(shuffled, new Random(1));
+        assertEquals(subset, new HashSet<>(subsetter.select(shuffled)));
+        assertEquals(subset, new HashSet<>(new RendezvousSubsetter("client-1", SUBSET, null).select(hosts)));
+    }
+
+    @Test
+    public void clientsAreSpreadOverHosts() {
+        List<ServiceDiscovery.HostandZone> hosts = hosts(HOSTS, "a");
+        Map<ServiceDiscovery.HostandZone, Integer> clientsPerHost = new HashMap<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            for (ServiceDiscovery.HostandZone host : new RendezvousSubsetter("client-" + client, SUBSET, null).select(hosts)) {
+                clientsPerHost.merge(host, 1, Integer::sum);
+            }
+        }
+
+        assertEquals(HOSTS, clientsPerHost.size());
+        double expected = (double) CLIENTS * SUBSET / HOSTS;
+        for (int clients : clientsPerHost.values()) {
+            assertEquals(expected, clients, expected * 0.5);
+        }
+    }
+
+    @Test
+    public void hostLeavingOnlyReplacesItself() {
+        List<ServiceDiscovery.HostandZone> hosts = hosts(HOSTS, "a");
+        List<ServiceDiscovery.HostandZone> remaining = new ArrayList<>(hosts);
+        remaining.remove(0);
+
+        assertChurn(hosts, remaining);
+    }
+
+    @Test
+    public void hostJoiningOnlyDisplacesOne() {
+        List<ServiceDiscovery.HostandZone> hosts = hosts(HOSTS, "a");
+        List<ServiceDiscovery.HostandZone> grown = new ArrayList<>(hosts);
+        grown.add(host(HOSTS, "a"));
+
+        assertChurn(hosts, grown);
+    }
+
+    @Test
+    public void preferredZoneIsSelectedFirst() {
+        List<ServiceDiscovery.HostandZone> hosts = new ArrayList<>(hosts(HOSTS, "a"));
+        for (int i = 0; i < 2 * SUBSET; i++) {
+            hosts.add(host(HOSTS + i, "b"));
+        }
+
+        List<ServiceDiscovery.HostandZone> subset = new RendezvousSubsetter("client-1", SUBSET, "b").select(hosts);
+        assertEquals(SUBSET, subset.size());
+        for (ServiceDiscovery.HostandZone host : subset) {
+            assertEquals("b", host.getZone());
+        }
+    }
+
+    @Test
+    public void shortZoneIsToppedUpFromOtherZones() {
+        List<ServiceDiscovery.HostandZone> hosts = new ArrayList<>(hosts(HOSTS, "a"));
+        List<ServiceDiscovery.HostandZone> zoneB = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            zoneB.add(host(HOSTS + i, "b"));
+        }
+        hosts.addAll(zoneB);
+
+        List<ServiceDiscovery.HostandZone> subset = new RendezvousSubsetter("client-1", SUBSET, "b").select(hosts);
+        assertEquals(SUBSET, subset.size());
+        assertTrue(subset.containsAll(zoneB));
+        assertEquals(SUBSET - zoneB.size(), subset.stream().filter(host -> host.getZone().equals("a")).count());
+    }
+
+    @Test
+    public void fewHostsAreAllSelected() {
+        List<ServiceDiscovery.HostandZone> hosts = hosts(SUBSET, "a");
+
+        assertEquals(hosts, new RendezvousSubsetter("client-1", SUBSET, "b").select(hosts));
+    }
+
+    /**
+     * Each client's subset changes by at most one host, about {@code SUBSET / HOSTS} of the clients
+     * see a change at all.
+     */
+    private static void assertChurn(List<ServiceDiscovery.HostandZone> before, List<ServiceDiscovery.HostandZone> after) {
+        int changedClients = 0;
+        for (int client = 0; client < CLIENTS; client++) {
+            RendezvousSubsetter subsetter = new RendezvousSubsetter("client-" + client, SUBSET, null);
+            Set<ServiceDiscovery.HostandZone> changed = new HashSet<>(subsetter.select(before));
+            changed.removeAll(subsetter.select(after));
+            assertTrue("Client " + client + " lost " + changed, changed.size() <= 1);
+            changedClients += changed.size();
+        }
+        double expected = (double) CLIENTS * SUBSET / HOSTS;
+        assertEquals(expected, changedClients, expected * 0.5);
+    }
+
+    private static List<ServiceDiscovery.HostandZone> hosts(int count, String zone) {
+        List<ServiceDiscovery.HostandZone> hosts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            hosts.add(host(i, zone));
+        }
+        return hosts;
+    }
+
+    private static ServiceDiscovery.HostandZone host(int index, String zone) {
+        return new ServiceDiscovery.HostandZone(URI.create("dns://10.0.0." + index + ":8080"), zone);
+    }
+}
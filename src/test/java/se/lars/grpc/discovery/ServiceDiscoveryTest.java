@@ -0,0 +1,104 @@
+package se.lars.grpc.discovery;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServiceDiscoveryTest {
+
+    private static final String SERVICE = "foo";
+
+    private TestingServer zookeeper;
+    private ServiceDiscovery watching;
+    private ServiceDiscovery registering;
+    private final BlockingQueue<List<ServiceDiscovery.HostandZone>> updates = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        zookeeper = new TestingServer();
+        watching = new ServiceDiscovery(zookeeper.getConnectString());
+        registering = new ServiceDiscovery(zookeeper.getConnectString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watching.close();
+        registering.close();
+        zookeeper.close();
+    }
+
+    @Test
+    public void watchReportsRegistrations() throws Exception {
+        watching.watchForUpdates(SERVICE, updates::add);
+
+        registering.registerService(SERVICE, URI.create("http://host1:8080"), "zone1");
+        awaitInstances(1);
+        registering.registerService(SERVICE, URI.create("http://host2:8080"), "zone1");
+        awaitInstances(2);
+        registering.deregister(SERVICE, URI.create("http://host1:8080"), "zone1");
+        awaitInstances(1);
+    }
+
+    @Test
+    public void watchSurvivesSessionExpiry() throws Exception {
+        watching.watchForUpdates(SERVICE, updates::add);
+        registering.registerService(SERVICE, URI.create("http://host1:8080"), "zone1");
+        awaitInstances(1);
+
+        KillSession.kill(watching.getCuratorFramework().getZookeeperClient().getZooKeeper(), zookeeper.getConnectString());
+        // Changes made while the watch was gone are picked up by the read after the new session is up
+        registering.registerService(SERVICE, URI.create("http://host2:8080"), "zone1");
+        awaitInstances(2);
+
+        registering.registerService(SERVICE, URI.create("http://host3:8080"), "zone1");
+        awaitInstances(3);
+    }
+
+    @Test
+    public void readsDoNotOpenWriteSession() throws Exception {
+        DiscoveryClients clients = new DiscoveryClients(DiscoveryClientConfig.newBuilder()
+                                                                             .setConnectString(zookeeper.getConnectString())
+                                                                             .setReadConnectString(zookeeper.getConnectString())
+                                                                             .build(),
+                                                        null);
+        try (ServiceDiscovery reading = new ServiceDiscovery(clients, MoreExecutors.directExecutor(), true)) {
+            assertTrue(reading.discover(SERVICE).isEmpty());
+            assertTrue(reading.watchForUpdates(SERVICE, updates::add));
+
+            // The watch on the missing node picks up the first registration
+            registering.registerService(SERVICE, URI.create("http://host1:8080"), "zone1");
+            awaitInstances(1);
+            assertEquals(1, reading.discover(SERVICE).size());
+            assertFalse(clients.hasWriteClient());
+        }
+    }
+
+    private void awaitInstances(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        List<ServiceDiscovery.HostandZone> last = null;
+        while (System.nanoTime() < deadline) {
+            List<ServiceDiscovery.HostandZone> update = updates.poll(100, TimeUnit.MILLISECONDS);
+            if (update != null) {
+                last = update;
+                if (update.size() == expected) {
+                    return;
+                }
+            }
+        }
+        fail("Expected " + expected + " instances, last update " + last);
+    }
+}
@@ -0,0 +1,199 @@
+package se.lars.grpc.healthchecking;
+
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.lars.grpc.loadbalancing.FakeHelper;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver;
+import se.lars.grpc.loadbalancing.ObservingSubchannelPicker;
+import se.lars.grpc.loadbalancing.RecordingBalancer;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HealthCheckingLoadBalancerTest {
+
+    private static final long INTERVAL_MILLIS = 20;
+
+    private final String prefix = "health-test-" + System.nanoTime() + "-";
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final RecordingBalancer delegate = new RecordingBalancer();
+    private final List<EquivalentAddressGroup> servers = FakeHelper.servers(1, 2, 3);
+    private final List<Backend> backends = new ArrayList<>();
+    private final List<Server> grpcServers = new ArrayList<>();
+    private final FakeHelper helper = new FakeHelper() {
+        @Override
+        public ManagedChannel createOobChannel(EquivalentAddressGroup eag, String authority) {
+            return InProcessChannelBuilder.forName(name(eag)).directExecutor().build();
+        }
+    };
+    private LoadBalancer balancer;
+
+    @Before
+    public void setUp() throws Exception {
+        for (EquivalentAddressGroup server : servers) {
+            Backend backend = new Backend();
+            backends.add(backend);
+            grpcServers.add(InProcessServerBuilder.forName(name(server)).addService(backend).directExecutor().build().start());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (balancer != null) {
+            helper.runSerialized(balancer::shutdown);
+        }
+        executor.shutdownNow();
+        grpcServers.forEach(Server::shutdownNow);
+    }
+
+    @Test
+    public void failingBackendIsExcludedUntilRecovered() throws Exception {
+        start(servers);
+        backends.get(0).failing = true;
+        delegate.awaitPublished(servers.subList(1, 3));
+
+        backends.get(0).failing = false;
+        delegate.awaitPublished(servers);
+    }
+
+    @Test
+    public void healthyBackendsStayInRotation() throws Exception {
+        start(servers);
+        Thread.sleep(10 * INTERVAL_MILLIS);
+
+        assertEquals(servers, delegate.getPublished());
+        assertTrue(backends.get(0).pings.get() > 0);
+    }
+
+    @Test
+    public void backendWithoutPingPongIsHealthy() throws Exception {
+        EquivalentAddressGroup server = FakeHelper.server(4);
+        grpcServers.add(InProcessServerBuilder.forName(name(server)).directExecutor().build().start());
+        List<EquivalentAddressGroup> withServer = new ArrayList<>(servers);
+        withServer.add(server);
+        start(withServer);
+        Thread.sleep(10 * INTERVAL_MILLIS);
+
+        assertEquals(withServer, delegate.getPublished());
+    }
+
+    @Test
+    public void allFailingBackendsArePassedThrough() throws Exception {
+        start(servers);
+        backends.forEach(backend -> backend.failing = true);
+        awaitPings(3);
+
+        assertEquals(servers, delegate.getPublished());
+    }
+
+    @Test
+    public void failingAttributedBackendIsExcluded() throws Exception {
+        List<EquivalentAddressGroup> attributed = attributed(servers);
+        start(attributed);
+        backends.get(0).failing = true;
+
+        delegate.awaitPublished(attributed.subList(1, 3));
+    }
+
+    @Test
+    public void recentTrafficSkipsProbes() throws Exception {
+        assertTrafficSkipsProbes(servers);
+    }
+
+    @Test
+    public void recentTrafficSkipsProbesForAttributedServers() throws Exception {
+        // The resolver attaches attributes the subchannels created by the delegate don't carry
+        assertTrafficSkipsProbes(attributed(servers));
+    }
+
+    private void assertTrafficSkipsProbes(List<EquivalentAddressGroup> resolved) throws InterruptedException {
+        start(resolved);
+        LoadBalancer.Subchannel subchannel = helper.createSubchannel(FakeHelper.server(1), Attributes.EMPTY);
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10 * INTERVAL_MILLIS);
+        while (System.nanoTime() < until) {
+            ((ObservingSubchannelPicker.CallObserver) balancer).onCallClosed(subchannel, Status.OK, 0);
+            Thread.sleep(INTERVAL_MILLIS / 4);
+        }
+
+        assertTrue("Pinged " + backends.get(0).pings.get() + " times", backends.get(0).pings.get() <= 1);
+        assertTrue("Pinged " + backends.get(1).pings.get() + " times", backends.get(1).pings.get() >= 5);
+    }
+
+    private void start(List<EquivalentAddressGroup> resolved) {
+        balancer = HealthCheckingLoadBalancerFactory.newBuilder()
+                                                    .setDelegate(delegate.factory())
+                                                    .setInterval(INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+                                                    .setTimeout(1, TimeUnit.SECONDS)
+                                                    .setUnhealthyThreshold(2)
+                                                    .setHealthyThreshold(1)
+                                                    .setExecutor(executor)
+                                                    .build()
+                                                    .newLoadBalancer(helper);
+        helper.runSerialized(() -> balancer.handleResolvedAddressGroups(resolved, Attributes.EMPTY));
+        assertEquals(resolved, delegate.getPublished());
+    }
+
+    private static List<EquivalentAddressGroup> attributed(List<EquivalentAddressGroup> servers) {
+        List<EquivalentAddressGroup> attributed = new ArrayList<>();
+        for (EquivalentAddressGroup server : servers) {
+            attributed.add(new EquivalentAddressGroup(server.getAddresses(),
+                                                      Attributes.newBuilder()
+                                                                .set(ZookeeperZoneAwareNameResolver.REGISTERED_AT_KEY, 1L)
+                                                                .build()));
+        }
+        return attributed;
+    }
+
+    private String name(EquivalentAddressGroup server) {
+        return prefix + server.getAddresses();
+    }
+
+    /**
+     * Wait until every backend has been pinged at least the given number of times.
+     */
+    private void awaitPings(int pings) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (backends.stream().anyMatch(backend -> backend.pings.get() < pings)) {
+            if (System.nanoTime() > deadline) {
+                fail("Expected " + pings + " pings");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class Backend extends PingPongGrpc.PingPongImplBase {
+        private final AtomicInteger pings = new AtomicInteger();
+        private volatile boolean failing;
+
+        @Override
+        public void pingit(Health.Ping request, StreamObserver<Health.Pong> responseObserver) {
+            pings.incrementAndGet();
+            if (failing) {
+                responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+            } else {
+                responseObserver.onNext(Health.Pong.newBuilder().build());
+                responseObserver.onCompleted();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolingLoadBalancerTest {
+
+    private static final int STREAMS = 4;
+
+    private final FakeHelper helper = new FakeHelper();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<ClientStreamTracer> outstanding = new ArrayList<>();
+    private LoadBalancer balancer;
+
+    @Before
+    public void setUp() {
+        balancer = ConnectionPoolingLoadBalancerFactory.newBuilder()
+                                                       .setConnectionsPerBackend(1, 3)
+                                                       .setMaxConcurrentStreams(STREAMS)
+                                                       .setScaleUp(0.75, 2)
+                                                       .setScaleDown(3)
+                                                       .setInterval(10, TimeUnit.MILLISECONDS)
+                                                       .setExecutor(executor)
+                                                       .build()
+                                                       .newLoadBalancer(helper);
+        helper.runSerialized(() -> balancer.handleResolvedAddressGroups(FakeHelper.servers(1), Attributes.EMPTY));
+        connectAll();
+        assertEquals(1, helper.getActiveSubchannels().size());
+    }
+
+    @After
+    public void tearDown() {
+        helper.runSerialized(balancer::shutdown);
+        executor.shutdownNow();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresMaxConcurrentStreams() {
+        ConnectionPoolingLoadBalancerFactory.newBuilder().build();
+    }
+
+    @Test
+    public void scalesUpUnderLoad() throws Exception {
+        startCalls(3);
+        awaitConnections(2);
+        connectAll();
+
+        // The new connection is the least loaded and takes the next calls
+        FakeHelper.FakeSubchannel added = helper.getActiveSubchannels().get(1);
+        assertEquals(added, startCalls(1));
+
+        startCalls(2);
+        awaitConnections(3);
+        connectAll();
+
+        startCalls(6);
+        Thread.sleep(100);
+        assertEquals("Pool grew beyond max connections", 3, helper.getActiveSubchannels().size());
+    }
+
+    @Test
+    public void lowLoadDoesNotScaleUp() throws Exception {
+        startCalls(2);
+        Thread.sleep(100);
+
+        assertEquals(1, helper.getActiveSubchannels().size());
+    }
+
+    @Test
+    public void scalesDownWhenIdle() throws Exception {
+        startCalls(3);
+        awaitConnections(2);
+        connectAll();
+        FakeHelper.FakeSubchannel first = helper.getActiveSubchannels().get(0);
+
+        // The least loaded connection is removed, the one with calls in flight is kept
+        for (ClientStreamTracer tracer : outstanding.subList(1, 3)) {
+            tracer.streamClosed(Status.OK);
+        }
+        awaitConnections(1);
+        assertEquals(first, helper.getActiveSubchannels().get(0));
+        assertTrue(helper.subchannels.get(1).shutdown);
+
+        // Never below the configured connections
+        outstanding.get(0).streamClosed(Status.OK);
+        Thread.sleep(100);
+        assertEquals(1, helper.getActiveSubchannels().size());
+        assertFalse(first.shutdown);
+    }
+
+    /**
+     * @return Subchannel the last call went to
+     */
+    private LoadBalancer.Subchannel startCalls(int calls) {
+        LoadBalancer.Subchannel subchannel = null;
+        for (int i = 0; i < calls; i++) {
+            LoadBalancer.PickResult result = helper.getPicker().pickSubchannel(FakeHelper.pickArgs(CallOptions.DEFAULT, new Metadata()));
+            outstanding.add(result.getStreamTracerFactory().newClientStreamTracer(CallOptions.DEFAULT, new Metadata()));
+            subchannel = result.getSubchannel();
+        }
+        return subchannel;
+    }
+
+    private void connectAll() {
+        helper.runSerialized(() -> {
+            for (FakeHelper.FakeSubchannel subchannel : helper.getActiveSubchannels()) {
+                subchannel.setState(balancer, ConnectivityState.READY);
+            }
+        });
+        assertEquals(ConnectivityState.READY, helper.getState());
+    }
+
+    private void awaitConnections(int connections) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (helper.getActiveSubchannels().size() != connections) {
+            if (System.nanoTime() > deadline) {
+                fail("Expected " + connections + " connections but was " + helper.getActiveSubchannels().size());
+            }
+            Thread.sleep(5);
+        }
+    }
+}
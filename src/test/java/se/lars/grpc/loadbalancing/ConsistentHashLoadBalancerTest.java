@@ -0,0 +1,171 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashLoadBalancerTest {
+
+    private static final int KEYS = 20_000;
+
+    private final FakeHelper helper = new FakeHelper();
+    private LoadBalancer balancer;
+
+    @Before
+    public void setUp() {
+        balancer = ConsistentHashLoadBalancerFactory.newBuilder()
+                                                    .setHeader("user")
+                                                    .build()
+                                                    .newLoadBalancer(helper);
+    }
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        resolve(FakeHelper.servers(1, 2, 3, 4, 5));
+
+        Map<LoadBalancer.Subchannel, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(pick("key-" + i), 1, Integer::sum);
+        }
+
+        assertEquals(5, counts.size());
+        for (int count : counts.values()) {
+            assertEquals((double) KEYS / 5, count, KEYS / 5 * 0.05);
+        }
+    }
+
+    @Test
+    public void removingBackendOnlyMovesItsKeys() {
+        List<EquivalentAddressGroup> servers = FakeHelper.servers(1, 2, 3, 4, 5);
+        resolve(servers);
+        List<EquivalentAddressGroup> before = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            before.add(pick("key-" + i).getAddresses());
+        }
+
+        resolve(servers.subList(1, 5));
+        int kept = 0;
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            EquivalentAddressGroup after = pick("key-" + i).getAddresses();
+            if (before.get(i).equals(servers.get(0))) {
+                assertNotEquals(servers.get(0), after);
+            } else if (before.get(i).equals(after)) {
+                kept++;
+            } else {
+                moved++;
+            }
+        }
+
+        assertTrue("Moved " + moved + " of " + (kept + moved) + " keys", moved < (kept + moved) * 0.02);
+    }
+
+    @Test
+    public void sameKeySameBackend() {
+        resolve(FakeHelper.servers(1, 2, 3));
+
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("user", Metadata.ASCII_STRING_MARSHALLER), "key-1");
+        LoadBalancer.PickResult fromHeader = helper.getPicker().pickSubchannel(FakeHelper.pickArgs(CallOptions.DEFAULT, headers));
+
+        assertEquals(pick("key-1"), fromHeader.getSubchannel());
+    }
+
+    @Test
+    public void hotKeySpillsOverToNextBackend() {
+        resolve(FakeHelper.servers(1, 2, 3, 4));
+        LoadBalancer.Subchannel home = pick("hot");
+
+        List<ClientStreamTracer> outstanding = new ArrayList<>();
+        Map<LoadBalancer.Subchannel, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            LoadBalancer.PickResult result = pickResult("hot");
+            counts.merge(result.getSubchannel(), 1, Integer::sum);
+            outstanding.add(result.getStreamTracerFactory().newClientStreamTracer(CallOptions.DEFAULT, new Metadata()));
+        }
+
+        // Capacity is the load factor times the average outstanding calls per backend
+        assertTrue("Home backend took " + counts.get(home), counts.get(home) <= Math.ceil(1.25 * 100 / 4));
+        assertTrue(counts.size() > 1);
+
+        for (ClientStreamTracer tracer : outstanding) {
+            tracer.streamClosed(Status.OK);
+        }
+        assertEquals(home, pick("hot"));
+    }
+
+    @Test
+    public void skipsBackendsNotReady() {
+        resolve(FakeHelper.servers(1, 2, 3));
+        LoadBalancer.Subchannel home = pick("key-1");
+
+        ((FakeHelper.FakeSubchannel) home).setState(balancer, ConnectivityState.TRANSIENT_FAILURE);
+        LoadBalancer.Subchannel other = pick("key-1");
+        assertNotEquals(home, other);
+
+        ((FakeHelper.FakeSubchannel) home).setState(balancer, ConnectivityState.READY);
+        assertEquals(home, pick("key-1"));
+    }
+
+    @Test
+    public void stringHashCodeCollisionsAreSpread() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(ConsistentHashLoadBalancer.hashKey("Aa"), ConsistentHashLoadBalancer.hashKey("BB"));
+        assertNotEquals(ConsistentHashLoadBalancer.hashKey("key"), ConsistentHashLoadBalancer.hashKey("key\u0000"));
+    }
+
+    @Test
+    public void picksDontAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        resolve(FakeHelper.servers(1, 2, 3, 4, 5));
+        LoadBalancer.SubchannelPicker picker = helper.getPicker();
+        LoadBalancer.PickSubchannelArgs args = FakeHelper.pickArgs(CallOptions.DEFAULT.withOption(ConsistentHashLoadBalancerFactory.HASH_KEY,
+                                                                                                  "some-longer-user-key"),
+                                                                   new Metadata());
+        for (int i = 0; i < KEYS; i++) {
+            picker.pickSubchannel(args);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < KEYS; i++) {
+            picker.pickSubchannel(args);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < KEYS);
+    }
+
+    private void resolve(List<EquivalentAddressGroup> servers) {
+        balancer.handleResolvedAddressGroups(servers, Attributes.EMPTY);
+        for (FakeHelper.FakeSubchannel subchannel : helper.getActiveSubchannels()) {
+            subchannel.setState(balancer, ConnectivityState.READY);
+        }
+        assertEquals(ConnectivityState.READY, helper.getState());
+    }
+
+    private LoadBalancer.Subchannel pick(String key) {
+        return pickResult(key).getSubchannel();
+    }
+
+    private LoadBalancer.PickResult pickResult(String key) {
+        return helper.getPicker().pickSubchannel(FakeHelper.pickArgs(CallOptions.DEFAULT.withOption(ConsistentHashLoadBalancerFactory.HASH_KEY, key),
+                                                                     new Metadata()));
+    }
+}
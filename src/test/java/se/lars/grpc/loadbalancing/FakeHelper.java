@@ -0,0 +1,171 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Channel helper for balancer tests.  Subchannels are fakes that record their connection requests,
+ * and tasks run serialized on the calling thread.
+ */
+public class FakeHelper extends LoadBalancer.Helper {
+
+    public final List<FakeSubchannel> subchannels = Collections.synchronizedList(new ArrayList<>());
+    private volatile ConnectivityState state;
+    private volatile LoadBalancer.SubchannelPicker picker;
+
+    public static EquivalentAddressGroup server(int port) {
+        return new EquivalentAddressGroup(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    public static List<EquivalentAddressGroup> servers(int... ports) {
+        List<EquivalentAddressGroup> servers = new ArrayList<>();
+        for (int port : ports) {
+            servers.add(server(port));
+        }
+        return servers;
+    }
+
+    /**
+     * @return Arguments for a pick with the given options and headers
+     */
+    public static LoadBalancer.PickSubchannelArgs pickArgs(CallOptions callOptions, Metadata headers) {
+        return new LoadBalancer.PickSubchannelArgs() {
+            @Override
+            public CallOptions getCallOptions() {
+                return callOptions;
+            }
+
+            @Override
+            public Metadata getHeaders() {
+                return headers;
+            }
+
+            @Override
+            public MethodDescriptor<?, ?> getMethodDescriptor() {
+                return null;
+            }
+        };
+    }
+
+    public ConnectivityState getState() {
+        return state;
+    }
+
+    public LoadBalancer.SubchannelPicker getPicker() {
+        return picker;
+    }
+
+    /**
+     * @return The subchannels not shut down
+     */
+    public List<FakeSubchannel> getActiveSubchannels() {
+        List<FakeSubchannel> active = new ArrayList<>();
+        synchronized (subchannels) {
+            for (FakeSubchannel subchannel : subchannels) {
+                if (!subchannel.shutdown) {
+                    active.add(subchannel);
+                }
+            }
+        }
+        return active;
+    }
+
+    @Override
+    public LoadBalancer.Subchannel createSubchannel(EquivalentAddressGroup addressGroup, Attributes attrs) {
+        FakeSubchannel subchannel = new FakeSubchannel(addressGroup, attrs);
+        subchannels.add(subchannel);
+        return subchannel;
+    }
+
+    @Override
+    public ManagedChannel createOobChannel(EquivalentAddressGroup eag, String authority) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void updatePicker(LoadBalancer.SubchannelPicker picker) {
+        this.picker = picker;
+    }
+
+    @Override
+    public void updateBalancingState(ConnectivityState newState, LoadBalancer.SubchannelPicker newPicker) {
+        this.state = newState;
+        this.picker = newPicker;
+    }
+
+    @Override
+    public synchronized void runSerialized(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public NameResolver.Factory getNameResolverFactory() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getAuthority() {
+        return "fake";
+    }
+
+    public static final class FakeSubchannel extends LoadBalancer.Subchannel {
+        private final EquivalentAddressGroup addressGroup;
+        private final Attributes attributes;
+        public volatile int connectionRequests;
+        public volatile boolean shutdown;
+
+        FakeSubchannel(EquivalentAddressGroup addressGroup, Attributes attributes) {
+            this.addressGroup = addressGroup;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Report the state to the balancer, as the channel would.
+         */
+        public void setState(LoadBalancer balancer, ConnectivityState state) {
+            balancer.handleSubchannelState(this, state == ConnectivityState.TRANSIENT_FAILURE
+                                                 ? ConnectivityStateInfo.forTransientFailure(Status.UNAVAILABLE)
+                                                 : ConnectivityStateInfo.forNonError(state));
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public void requestConnection() {
+            connectionRequests++;
+        }
+
+        @Override
+        public EquivalentAddressGroup getAddresses() {
+            return addressGroup;
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return addressGroup.toString();
+        }
+    }
+}
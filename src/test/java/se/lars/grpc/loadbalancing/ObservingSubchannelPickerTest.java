@@ -0,0 +1,113 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ObservingSubchannelPickerTest {
+
+    private final LoadBalancer.Subchannel subchannel = new FakeHelper().createSubchannel(FakeHelper.server(1), Attributes.EMPTY);
+    private final RecordingObserver observer = new RecordingObserver();
+
+    @Test
+    public void observesCallStartAndClose() throws Exception {
+        ObservingSubchannelPicker picker = new ObservingSubchannelPicker(fixed(LoadBalancer.PickResult.withSubchannel(subchannel)), observer);
+
+        LoadBalancer.PickResult result = pick(picker);
+        assertSame(subchannel, result.getSubchannel());
+        assertTrue(observer.events.isEmpty());
+
+        ClientStreamTracer tracer = result.getStreamTracerFactory().newClientStreamTracer(CallOptions.DEFAULT, new Metadata());
+        assertEquals("started " + subchannel, observer.events.get(0));
+
+        Thread.sleep(10);
+        tracer.streamClosed(Status.UNAVAILABLE);
+        assertEquals("closed " + subchannel + " UNAVAILABLE", observer.events.get(1));
+        assertTrue("Elapsed " + observer.elapsedNanos, observer.elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void delegateTracerIsPreserved() {
+        List<String> delegateEvents = new ArrayList<>();
+        ClientStreamTracer.Factory delegateFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(CallOptions callOptions, Metadata headers) {
+                delegateEvents.add("started");
+                return new ClientStreamTracer() {
+                    @Override
+                    public void outboundMessage() {
+                        delegateEvents.add("message");
+                    }
+
+                    @Override
+                    public void streamClosed(Status status) {
+                        delegateEvents.add("closed " + status.getCode());
+                    }
+                };
+            }
+        };
+        ObservingSubchannelPicker picker = new ObservingSubchannelPicker(fixed(LoadBalancer.PickResult.withSubchannel(subchannel, delegateFactory)),
+                                                                         observer);
+
+        ClientStreamTracer tracer = pick(picker).getStreamTracerFactory().newClientStreamTracer(CallOptions.DEFAULT, new Metadata());
+        tracer.outboundMessage();
+        tracer.streamClosed(Status.OK);
+
+        assertEquals(3, delegateEvents.size());
+        assertEquals("closed OK", delegateEvents.get(2));
+        assertEquals(2, observer.events.size());
+    }
+
+    @Test
+    public void picksWithoutSubchannelPassThrough() {
+        LoadBalancer.PickResult error = LoadBalancer.PickResult.withError(Status.UNAVAILABLE);
+        LoadBalancer.PickResult none = LoadBalancer.PickResult.withNoResult();
+
+        assertSame(error, pick(new ObservingSubchannelPicker(fixed(error), observer)));
+        assertSame(none, pick(new ObservingSubchannelPicker(fixed(none), observer)));
+        assertNull(none.getStreamTracerFactory());
+        assertTrue(observer.events.isEmpty());
+    }
+
+    private static LoadBalancer.PickResult pick(LoadBalancer.SubchannelPicker picker) {
+        return picker.pickSubchannel(FakeHelper.pickArgs(CallOptions.DEFAULT, new Metadata()));
+    }
+
+    private static LoadBalancer.SubchannelPicker fixed(LoadBalancer.PickResult result) {
+        return new LoadBalancer.SubchannelPicker() {
+            @Override
+            public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+                return result;
+            }
+        };
+    }
+
+    private static final class RecordingObserver implements ObservingSubchannelPicker.CallObserver {
+        private final List<String> events = new ArrayList<>();
+        private long elapsedNanos;
+
+        @Override
+        public void onCallStarted(LoadBalancer.Subchannel subchannel) {
+            events.add("started " + subchannel);
+        }
+
+        @Override
+        public void onCallClosed(LoadBalancer.Subchannel subchannel, Status status, long elapsedNanos) {
+            events.add("closed " + subchannel + " " + status.getCode());
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Test;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutlierDetectionLoadBalancerTest {
+
+    private static final long EJECTION_MILLIS = 300;
+
+    private final FakeHelper helper = new FakeHelper();
+    private final RecordingBalancer delegate = new RecordingBalancer();
+    private List<EquivalentAddressGroup> servers = FakeHelper.servers(1, 2, 3);
+    private LoadBalancer balancer;
+
+    @After
+    public void tearDown() {
+        if (balancer != null) {
+            helper.runSerialized(balancer::shutdown);
+        }
+    }
+
+    @Test
+    public void consecutiveFailuresEjectForEjectionTime() throws Exception {
+        start(50);
+        long ejectedFor = ejectAndAwaitReturn(servers.get(0));
+
+        assertTrue("Ejected for " + ejectedFor + " ms", ejectedFor >= EJECTION_MILLIS - 50 && ejectedFor < EJECTION_MILLIS * 3 / 2);
+    }
+
+    @Test
+    public void errorRateEjects() throws Exception {
+        start(50);
+        LoadBalancer.Subchannel subchannel = helper.createSubchannel(servers.get(0), Attributes.EMPTY);
+        for (int i = 0; i < 2; i++) {
+            call(subchannel, Status.OK);
+            call(subchannel, Status.UNAVAILABLE);
+        }
+
+        delegate.awaitPublished(servers.subList(1, 3));
+    }
+
+    @Test
+    public void successesAreNotFailures() throws Exception {
+        start(50);
+        LoadBalancer.Subchannel subchannel = helper.createSubchannel(servers.get(0), Attributes.EMPTY);
+        for (int i = 0; i < 10; i++) {
+            call(subchannel, Status.OK);
+            call(subchannel, Status.NOT_FOUND);
+        }
+        Thread.sleep(50);
+
+        assertEquals(servers, delegate.getPublished());
+    }
+
+    @Test
+    public void maxEjectionPercentLimitsEjections() throws Exception {
+        start(50);
+        failCalls(servers.get(0));
+        failCalls(servers.get(1));
+        Thread.sleep(50);
+
+        assertEquals(2, delegate.getPublished().size());
+        assertFalse(delegate.getPublished().contains(servers.get(0)));
+    }
+
+    @Test
+    public void zeroMaxEjectionPercentNeverEjects() throws Exception {
+        start(0);
+        failCalls(servers.get(0));
+        Thread.sleep(50);
+
+        assertEquals(servers, delegate.getPublished());
+    }
+
+    @Test
+    public void repeatedEjectionTakesLonger() throws Exception {
+        start(50);
+        ejectAndAwaitReturn(servers.get(0));
+        // A single success must not make up for the ejection
+        call(helper.createSubchannel(servers.get(0), Attributes.EMPTY), Status.OK);
+        Thread.sleep(50);
+        long ejectedFor = ejectAndAwaitReturn(servers.get(0));
+
+        assertTrue("Ejected for " + ejectedFor + " ms", ejectedFor >= 2 * EJECTION_MILLIS - 50);
+    }
+
+    @Test
+    public void ejectionTimeDecaysWhileHealthy() throws Exception {
+        start(50);
+        ejectAndAwaitReturn(servers.get(0));
+        LoadBalancer.Subchannel subchannel = helper.createSubchannel(servers.get(0), Attributes.EMPTY);
+        for (int i = 0; i < 4; i++) {
+            call(subchannel, Status.OK);
+        }
+        Thread.sleep(EJECTION_MILLIS + 100);
+        long ejectedFor = ejectAndAwaitReturn(servers.get(0));
+
+        assertTrue("Ejected for " + ejectedFor + " ms", ejectedFor < EJECTION_MILLIS * 3 / 2);
+    }
+
+    @Test
+    public void attributedServersAreEjected() throws Exception {
+        // The resolver attaches attributes the subchannels created by the delegate don't carry
+        List<EquivalentAddressGroup> attributed = new ArrayList<>();
+        for (EquivalentAddressGroup server : servers) {
+            attributed.add(new EquivalentAddressGroup(server.getAddresses(),
+                                                      Attributes.newBuilder()
+                                                                .set(ZookeeperZoneAwareNameResolver.REGISTERED_AT_KEY, 1L)
+                                                                .build()));
+        }
+        servers = attributed;
+        start(50);
+        failCalls(FakeHelper.server(1));
+
+        delegate.awaitPublished(servers.subList(1, 3));
+    }
+
+    private void start(int maxEjectionPercent) {
+        balancer = OutlierDetectionLoadBalancerFactory.newBuilder()
+                                                      .setDelegate(delegate.factory())
+                                                      .setInterval(10, TimeUnit.MILLISECONDS)
+                                                      .setConsecutiveFailures(3)
+                                                      .setErrorRateThreshold(0.5, 4)
+                                                      .setEjectionTime(EJECTION_MILLIS, 10 * EJECTION_MILLIS, TimeUnit.MILLISECONDS)
+                                                      .setMaxEjectionPercent(maxEjectionPercent)
+                                                      .build()
+                                                      .newLoadBalancer(helper);
+        helper.runSerialized(() -> balancer.handleResolvedAddressGroups(servers, Attributes.EMPTY));
+        assertEquals(servers, delegate.getPublished());
+    }
+
+    /**
+     * @return Milliseconds the server was out of rotation
+     */
+    private long ejectAndAwaitReturn(EquivalentAddressGroup server) throws InterruptedException {
+        failCalls(server);
+        assertFalse(delegate.getPublished().contains(server));
+        long ejected = System.nanoTime();
+        delegate.awaitPublished(servers);
+        return TimeUnit.NANOSECONDS.toMillis(delegate.getPublishedAtNanos() - ejected);
+    }
+
+    private void failCalls(EquivalentAddressGroup server) {
+        LoadBalancer.Subchannel subchannel = helper.createSubchannel(server, Attributes.EMPTY);
+        for (int i = 0; i < 3; i++) {
+            call(subchannel, Status.UNAVAILABLE);
+        }
+    }
+
+    private void call(LoadBalancer.Subchannel subchannel, Status status) {
+        ((ObservingSubchannelPicker.CallObserver) balancer).onCallClosed(subchannel, status, 0);
+    }
+}
@@ -0,0 +1,72 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Delegate balancer for tests of filtering balancers, recording the servers last published to it.
+ */
+public class RecordingBalancer extends LoadBalancer {
+
+    private volatile List<EquivalentAddressGroup> published;
+    private volatile long publishedAtNanos;
+
+    /**
+     * @return Factory handing out this balancer
+     */
+    public LoadBalancer.Factory factory() {
+        return new LoadBalancer.Factory() {
+            @Override
+            public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+                return RecordingBalancer.this;
+            }
+        };
+    }
+
+    public List<EquivalentAddressGroup> getPublished() {
+        return published;
+    }
+
+    public long getPublishedAtNanos() {
+        return publishedAtNanos;
+    }
+
+    /**
+     * Wait up to five seconds for the expected servers to be published.
+     */
+    public void awaitPublished(List<EquivalentAddressGroup> expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!expected.equals(published)) {
+            if (System.nanoTime() > deadline) {
+                fail("Expected " + expected + " but was " + published);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> servers, Attributes attributes) {
+        published = servers;
+        publishedAtNanos = System.nanoTime();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+    }
+
+    @Override
+    public void handleSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
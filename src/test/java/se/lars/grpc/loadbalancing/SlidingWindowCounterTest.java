@@ -0,0 +1,77 @@
+package se.lars.grpc.loadbalancing;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingWindowCounterTest {
+
+    @Test
+    public void countsWithinWindow() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(10, TimeUnit.SECONDS, 10);
+        counter.recordSuccess();
+        counter.recordSuccess();
+        counter.recordFailure();
+
+        assertEquals(2, counter.getSuccesses());
+        assertEquals(1, counter.getFailures());
+    }
+
+    @Test
+    public void resetForgetsCounts() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(10, TimeUnit.SECONDS, 10);
+        counter.recordSuccess();
+        counter.recordFailure();
+        counter.reset();
+
+        assertEquals(0, counter.getSuccesses());
+        assertEquals(0, counter.getFailures());
+    }
+
+    @Test
+    public void oldBucketsLeaveWindow() throws InterruptedException {
+        SlidingWindowCounter counter = new SlidingWindowCounter(200, TimeUnit.MILLISECONDS, 4);
+        counter.recordFailure();
+        Thread.sleep(120);
+        counter.recordSuccess();
+        assertEquals(1, counter.getFailures());
+
+        Thread.sleep(130);
+        assertEquals(0, counter.getFailures());
+        assertEquals(1, counter.getSuccesses());
+
+        Thread.sleep(250);
+        assertEquals(0, counter.getSuccesses());
+        counter.recordSuccess();
+        assertEquals(1, counter.getSuccesses());
+    }
+
+    @Test
+    public void concurrentRecordsAreCounted() throws InterruptedException {
+        SlidingWindowCounter counter = new SlidingWindowCounter(1, TimeUnit.MINUTES, 10);
+        int threads = 4;
+        int records = 10_000;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < records; j++) {
+                    counter.recordSuccess();
+                    counter.recordFailure();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads * records, counter.getSuccesses());
+        assertEquals(threads * records, counter.getFailures());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresBuckets() {
+        new SlidingWindowCounter(1, TimeUnit.SECONDS, 0);
+    }
+}
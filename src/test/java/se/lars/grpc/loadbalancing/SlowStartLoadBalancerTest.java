@@ -0,0 +1,120 @@
+package se.lars.grpc.loadbalancing;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.lars.grpc.discovery.ZookeeperZoneAwareNameResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlowStartLoadBalancerTest {
+
+    private static final long WINDOW_MILLIS = 1000;
+    private static final int PICKS = 6000;
+
+    private final FakeHelper helper = new FakeHelper();
+    private final List<EquivalentAddressGroup> servers = new ArrayList<>();
+    private LoadBalancer balancer;
+
+    @Before
+    public void setUp() {
+        balancer = SlowStartLoadBalancerFactory.newBuilder()
+                                               .setWindow(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+                                               .setMinWeight(0.1)
+                                               .build()
+                                               .newLoadBalancer(helper);
+        long longAgo = System.currentTimeMillis() - 10 * WINDOW_MILLIS;
+        servers.add(registered(1, longAgo));
+        servers.add(registered(2, longAgo));
+        resolve();
+    }
+
+    @After
+    public void tearDown() {
+        helper.runSerialized(balancer::shutdown);
+    }
+
+    @Test
+    public void newBackendShareRisesOverWindow() throws Exception {
+        EquivalentAddressGroup added = registered(3, System.currentTimeMillis());
+        servers.add(added);
+        resolve();
+
+        double start = share(added);
+        Thread.sleep(WINDOW_MILLIS / 2);
+        double middle = share(added);
+        Thread.sleep(WINDOW_MILLIS / 2 + 50);
+        double end = share(added);
+
+        assertTrue("Share at start " + start, start < 0.1);
+        assertTrue("Share at start " + start + ", in the middle " + middle, middle > start + 0.05 && middle < 0.3);
+        assertEquals(1.0 / 3, end, 0.03);
+    }
+
+    @Test
+    public void backendsRegisteredBeforeWindowTakeFullShare() {
+        EquivalentAddressGroup added = registered(3, System.currentTimeMillis() - 2 * WINDOW_MILLIS);
+        servers.add(added);
+        resolve();
+
+        assertEquals(1.0 / 3, share(added), 0.03);
+    }
+
+    @Test
+    public void initialBackendsWithoutRegistrationTimeTakeFullShare() {
+        helper.runSerialized(balancer::shutdown);
+        balancer = SlowStartLoadBalancerFactory.newBuilder()
+                                               .setWindow(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+                                               .build()
+                                               .newLoadBalancer(helper);
+        servers.clear();
+        servers.addAll(FakeHelper.servers(1, 2, 3));
+        resolve();
+
+        assertEquals(1.0 / 3, share(servers.get(2)), 0.03);
+    }
+
+    /**
+     * @return Server with the registration time the Zookeeper resolver attaches
+     */
+    private static EquivalentAddressGroup registered(int port, long registeredAt) {
+        return new EquivalentAddressGroup(FakeHelper.server(port).getAddresses(),
+                                          Attributes.newBuilder()
+                                                    .set(ZookeeperZoneAwareNameResolver.REGISTERED_AT_KEY, registeredAt)
+                                                    .build());
+    }
+
+    private void resolve() {
+        helper.runSerialized(() -> {
+            balancer.handleResolvedAddressGroups(new ArrayList<>(servers), Attributes.EMPTY);
+            for (FakeHelper.FakeSubchannel subchannel : helper.getActiveSubchannels()) {
+                subchannel.setState(balancer, ConnectivityState.READY);
+            }
+        });
+        assertEquals(ConnectivityState.READY, helper.getState());
+    }
+
+    private double share(EquivalentAddressGroup server) {
+        int picked = 0;
+        for (int i = 0; i < PICKS; i++) {
+            LoadBalancer.Subchannel subchannel = helper.getPicker()
+                                                       .pickSubchannel(FakeHelper.pickArgs(CallOptions.DEFAULT, new Metadata()))
+                                                       .getSubchannel();
+            if (subchannel.getAddresses().getAddresses().equals(server.getAddresses())) {
+                picked++;
+            }
+        }
+        return (double) picked / PICKS;
+    }
+}
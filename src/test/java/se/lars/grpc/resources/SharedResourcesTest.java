@@ -0,0 +1,47 @@
+package se.lars.grpc.resources;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedResourcesTest {
+
+    @Test
+    public void defaultInstanceIsShared() {
+        assertSame(SharedResources.getDefault(), SharedResources.getDefault());
+        assertSame(SharedResources.getDefault().getScheduledExecutor(), SharedResources.getDefault().getScheduledExecutor());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void defaultInstanceCantBeClosed() {
+        SharedResources.getDefault().close();
+    }
+
+    @Test
+    public void defaultInstanceSurvivesCloseAttempt() {
+        ScheduledExecutorService scheduler = SharedResources.getDefault().getScheduledExecutor();
+        try {
+            SharedResources.getDefault().close();
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(scheduler.isShutdown());
+    }
+
+    @Test
+    public void closeShutsDownThreads() {
+        SharedResources resources = SharedResources.newBuilder()
+                                                   .setEventLoopThreads(1)
+                                                   .setExecutorThreads(1)
+                                                   .build();
+        ScheduledExecutorService scheduler = resources.getScheduledExecutor();
+        resources.getEventLoopGroup();
+        resources.close();
+
+        assertTrue(scheduler.isShutdown());
+        assertTrue(resources.getEventLoopGroup().isShuttingDown());
+    }
+}
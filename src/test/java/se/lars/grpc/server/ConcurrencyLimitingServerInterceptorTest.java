@@ -0,0 +1,138 @@
+package se.lars.grpc.server;
+
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.Status;
+import org.junit.Before;
+import org.junit.Test;
+import se.lars.proto.Health;
+import se.lars.proto.PingPongGrpc;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimitingServerInterceptorTest {
+
+    private static final double RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private ConcurrencyLimitingServerInterceptor limiter;
+
+    @Before
+    public void setUp() {
+        limiter = ConcurrencyLimitingServerInterceptor.newBuilder()
+                                                      .setInitialLimit(20)
+                                                      .setLimitRange(2, 1000)
+                                                      .build();
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyIsStable() {
+        windows(20, RTT);
+
+        assertTrue("Limit " + limiter.getLimit(), limiter.getLimit() > 30);
+        assertEquals((long) RTT, limiter.getBaselineRttNanos());
+    }
+
+    @Test
+    public void limitDecreasesUnderRisingLatency() {
+        windows(20, RTT);
+        int before = limiter.getLimit();
+
+        int previous = before;
+        for (double rtt = RTT * 2; rtt <= RTT * 4; rtt += RTT) {
+            windows(5, rtt);
+            assertTrue("Limit " + limiter.getLimit() + " at " + rtt / 1e6 + " ms", limiter.getLimit() < previous);
+            previous = limiter.getLimit();
+        }
+        // Sustained overload doesn't become the new baseline
+        windows(10, RTT * 4);
+
+        assertTrue("Limit " + limiter.getLimit(), limiter.getLimit() < before / 4);
+        assertEquals((long) RTT, limiter.getBaselineRttNanos());
+    }
+
+    @Test
+    public void limitRecoversWhenLatencyDrops() {
+        windows(20, RTT);
+        int before = limiter.getLimit();
+        windows(20, RTT * 4);
+        int overloaded = limiter.getLimit();
+
+        windows(60, RTT);
+
+        assertTrue("Limit " + limiter.getLimit() + " after " + overloaded, limiter.getLimit() >= before);
+    }
+
+    @Test
+    public void limitOnlyGrowsWhenUsed() {
+        for (int i = 0; i < 20; i++) {
+            limiter.updateLimit(RTT, 1);
+        }
+
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void baselineFollowsLatencyAtMinimumLimit() {
+        windows(20, RTT);
+        windows(100, RTT * 4);
+
+        assertTrue("Baseline " + limiter.getBaselineRttNanos(), limiter.getBaselineRttNanos() > RTT * 2);
+    }
+
+    @Test
+    public void cancelledCallsAreSampled() throws Exception {
+        limiter = ConcurrencyLimitingServerInterceptor.newBuilder()
+                                                      .setWindow(1, TimeUnit.NANOSECONDS, 1)
+                                                      .build();
+        ServerCall.Listener<Health.Ping> listener = limiter.interceptCall(new UnaryCall(), new Metadata(),
+                                                                          (call, headers) -> new ServerCall.Listener<Health.Ping>() {
+                                                                          });
+        assertEquals(1, limiter.getInFlight());
+        Thread.sleep(20);
+        listener.onCancel();
+
+        assertEquals(0, limiter.getInFlight());
+        assertTrue("Baseline " + limiter.getBaselineRttNanos(), limiter.getBaselineRttNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    /**
+     * Windows with the given latency and the current limit in use.
+     */
+    private void windows(int windows, double rttNanos) {
+        for (int i = 0; i < windows; i++) {
+            limiter.updateLimit(rttNanos, limiter.getLimit());
+        }
+    }
+
+    private static final class UnaryCall extends ServerCall<Health.Ping, Health.Pong> {
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(Health.Pong message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<Health.Ping, Health.Pong> getMethodDescriptor() {
+            return PingPongGrpc.METHOD_PINGIT;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package se.lars.grpc.server;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.lars.grpc.discovery.ServiceDiscovery;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServerLifecycleTest {
+
+    private static final String SERVICE = "foo";
+    private static final URI ENDPOINT = URI.create("dns://localhost:8080");
+
+    private TestingServer zookeeper;
+    private Server server;
+
+    @Before
+    public void setUp() throws Exception {
+        zookeeper = new TestingServer();
+        server = InProcessServerBuilder.forName("lifecycle-test-" + System.nanoTime()).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdownNow();
+        zookeeper.close();
+    }
+
+    @Test
+    public void shutdownDeregistersAndStops() throws Exception {
+        try (ServiceDiscovery discovery = new ServiceDiscovery(zookeeper.getConnectString())) {
+            ServerLifecycle lifecycle = newLifecycle(discovery);
+            lifecycle.start();
+            assertEquals(1, discovery.discover(SERVICE).size());
+
+            lifecycle.shutdown();
+            assertEquals(0, discovery.discover(SERVICE).size());
+            assertTrue(server.isTerminated());
+        }
+    }
+
+    @Test
+    public void idleServerWaitsForPropagationWindow() throws Exception {
+        try (ServiceDiscovery discovery = new ServiceDiscovery(zookeeper.getConnectString())) {
+            ServerLifecycle lifecycle = newLifecycle(discovery);
+            lifecycle.start();
+
+            // No calls arrive, yet clients that haven't seen the deregistration could still pick the server
+            long drainMillis = lifecycle.shutdown();
+            assertTrue("Drained in " + drainMillis + " ms", drainMillis >= 1000);
+        }
+    }
+
+    @Test
+    public void failedDeregistrationStillStopsServer() throws Exception {
+        ServiceDiscovery discovery = new ServiceDiscovery(zookeeper.getConnectString()) {
+            @Override
+            public boolean deregister(String serviceId, URI uriToDeregister) throws Exception {
+                throw new IllegalStateException("Zookeeper unavailable");
+            }
+        };
+        try {
+            ServerLifecycle lifecycle = newLifecycle(discovery);
+            lifecycle.start();
+
+            lifecycle.shutdown();
+            assertTrue(server.isTerminated());
+        } finally {
+            discovery.close();
+        }
+    }
+
+    private ServerLifecycle newLifecycle(ServiceDiscovery discovery) {
+        return ServerLifecycle.newBuilder()
+                              .setServer(server)
+                              .setServiceDiscovery(discovery)
+                              .setServiceId(SERVICE)
+                              .setEndpointURI(ENDPOINT)
+                              .setInFlightCalls(new InFlightCallsInterceptor())
+                              .setPropagationWindow(1, TimeUnit.SECONDS)
+                              .setQuietPeriod(50, TimeUnit.MILLISECONDS)
+                              .setTerminationTimeout(1, TimeUnit.SECONDS)
+                              .build();
+    }
+}